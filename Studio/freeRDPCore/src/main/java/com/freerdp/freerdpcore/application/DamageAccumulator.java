@@ -0,0 +1,192 @@
+/*
+   Damage accumulator shared between the RDP and the render thread
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.application;
+
+import android.graphics.Rect;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects dirty regions reported by the FreeRDP thread until the renderer drains them
+ * once per frame.
+ *
+ * <p>Pending damage is kept in a small fixed set of rectangles, each packed into a single
+ * long (16 bit per edge), so merging and draining are plain compare-and-set operations and
+ * neither side ever blocks the other. A new rectangle is merged into a slot it touches,
+ * otherwise it takes a free slot; only when all slots are taken it is merged into the
+ * one that grows the least.</p>
+ */
+public class DamageAccumulator {
+	public static final int DEFAULT_CAPACITY = 8;
+
+	private static final long EMPTY = 0;
+	private static final int MAX_COORD = 0xFFFF;
+
+	private final AtomicLongArray slots;
+
+	public DamageAccumulator() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DamageAccumulator(int capacity) {
+		slots = new AtomicLongArray(Math.max(1, capacity));
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	private static long pack(int left, int top, int right, int bottom) {
+		return ((long) left << 48) | ((long) top << 32) | ((long) right << 16) | (long) bottom;
+	}
+
+	private static int left(long r) {
+		return (int) (r >>> 48) & MAX_COORD;
+	}
+
+	private static int top(long r) {
+		return (int) (r >>> 32) & MAX_COORD;
+	}
+
+	private static int right(long r) {
+		return (int) (r >>> 16) & MAX_COORD;
+	}
+
+	private static int bottom(long r) {
+		return (int) r & MAX_COORD;
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(v, MAX_COORD));
+	}
+
+	private static long area(long r) {
+		return (long) (right(r) - left(r)) * (bottom(r) - top(r));
+	}
+
+	private static long union(long a, long b) {
+		return pack(Math.min(left(a), left(b)), Math.min(top(a), top(b)),
+				Math.max(right(a), right(b)), Math.max(bottom(a), bottom(b)));
+	}
+
+	// overlapping or adjacent rectangles are merged right away
+	private static boolean touches(long a, long b) {
+		return left(a) <= right(b) && left(b) <= right(a)
+				&& top(a) <= bottom(b) && top(b) <= bottom(a);
+	}
+
+	/**
+	 * Merges a dirty rectangle into the pending damage. Safe to call from any thread.
+	 */
+	public void add(int x, int y, int width, int height) {
+		int l = clamp(x);
+		int t = clamp(y);
+		int r = clamp(x + width);
+		int b = clamp(y + height);
+		if (r <= l || b <= t)
+			return;
+
+		addPacked(pack(l, t, r, b));
+	}
+
+	private void addPacked(long rect) {
+		for (;;) {
+			int target = -1;
+			int free = -1;
+			int cheapest = 0;
+			long cheapestGrowth = Long.MAX_VALUE;
+			long cur = EMPTY;
+
+			for (int i = 0; i < slots.length(); i++) {
+				long slot = slots.get(i);
+				if (slot == EMPTY) {
+					if (free < 0)
+						free = i;
+					continue;
+				}
+				if (touches(slot, rect)) {
+					target = i;
+					cur = slot;
+					break;
+				}
+				long growth = area(union(slot, rect)) - area(slot);
+				if (growth < cheapestGrowth) {
+					cheapestGrowth = growth;
+					cheapest = i;
+				}
+			}
+
+			if (target < 0 && free >= 0) {
+				if (slots.compareAndSet(free, EMPTY, rect))
+					return;
+				continue;
+			}
+
+			if (target < 0) {
+				target = cheapest;
+				cur = slots.get(target);
+				if (cur == EMPTY)
+					continue;
+			}
+
+			long merged = union(cur, rect);
+			if (merged == cur || slots.compareAndSet(target, cur, merged))
+				return;
+		}
+	}
+
+	/**
+	 * Merges a list of (x, y, width, height) tuples as delivered by the native
+	 * OnGraphicsUpdateRegions callback.
+	 */
+	public void addAll(int[] rects, int count) {
+		for (int i = 0; i < count; i++)
+			add(rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3]);
+	}
+
+	/**
+	 * Merges the pending damage of another accumulator without taking it.
+	 */
+	public void addFrom(DamageAccumulator other) {
+		for (int i = 0; i < other.slots.length(); i++) {
+			long cur = other.slots.get(i);
+			if (cur != EMPTY)
+				addPacked(cur);
+		}
+	}
+
+	public boolean isEmpty() {
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != EMPTY)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes all pending damage.
+	 *
+	 * @param out receives the dirty rectangles, needs room for {@link #getCapacity()} entries
+	 * @return number of rectangles stored in out, 0 if nothing was damaged since the last call
+	 */
+	public int drain(Rect[] out) {
+		int count = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			long cur = slots.getAndSet(i, EMPTY);
+			if (cur == EMPTY)
+				continue;
+			out[count++].set(left(cur), top(cur), right(cur), bottom(cur));
+		}
+		return count;
+	}
+
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++)
+			slots.set(i, EMPTY);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+   Complete desktop frame owned by a SurfaceRing
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.application;
+
+import android.graphics.Rect;
+
+import com.freerdp.freerdpcore.services.LibFreeRDP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Snapshot of the desktop at a given frame sequence number.
+ *
+ * <p>Surfaces are only written by the RDP thread while nobody holds them, so a surface
+ * handed out by {@link SurfaceRing#acquire(long)} never changes until it is released.</p>
+ */
+public class FrameSurface {
+	private final int index;
+	private final ByteBuffer pixels;
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final int format;
+	private final int bytesPerPixel;
+
+	// regions the renderer has to upload when it picks this surface
+	final DamageAccumulator uploadDamage = new DamageAccumulator();
+	long sequence = 0;
+
+	FrameSurface(int index, LibFreeRDP.Framebuffer framebuffer) {
+		this.index = index;
+		this.width = framebuffer.getWidth();
+		this.height = framebuffer.getHeight();
+		this.format = framebuffer.getFormat();
+		this.bytesPerPixel = framebuffer.getBytesPerPixel();
+		this.stride = width * bytesPerPixel;
+		this.pixels = ByteBuffer.allocateDirect(stride * height).order(ByteOrder.nativeOrder());
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	public ByteBuffer getPixels() {
+		return pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return one of the LibFreeRDP.Framebuffer FORMAT_ constants
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Takes the regions that changed since the frame the renderer uploaded last.
+	 *
+	 * @param out receives the dirty rectangles, needs room for
+	 *            {@link DamageAccumulator#DEFAULT_CAPACITY} entries
+	 * @return number of rectangles stored in out
+	 */
+	public int drainDamage(Rect[] out) {
+		return uploadDamage.drain(out);
+	}
+}
@@ -79,6 +79,9 @@ public class GlobalApp extends Application implements LibFreeRDP.EventListener {
     public void onCreate() {
         super.onCreate();
 
+        // the libraries take a while, have them ready by the time a session is started
+        LibFreeRDP.loadLibrariesAsync();
+
         bookmarkDB = new BookmarkDB(this);
 
         manualBookmarkGateway = new ManualBookmarkGateway(bookmarkDB);
@@ -26,6 +26,25 @@ public class GlobalSettings {
 	
 	private static final String PREF_SECURITY_ACCEPTALLCERTIFICATES = "security.accept_certificates";
 
+	private static final String PREF_GAZE_MINCUTOFF = "gaze.min_cutoff";
+	private static final String PREF_GAZE_BETA = "gaze.beta";
+
+	private static final String PREF_SCREEN_CURVATURE = "screen.curvature";
+	private static final String PREF_SCREEN_SEGMENTS = "screen.segments";
+	private static final String PREF_SCREEN_MONITORS = "screen.monitors";
+
+	// gaze pointer jitter filter, cutoff at rest in Hz and its increase per pixel/s
+	public static final float DEFAULT_GAZE_MIN_CUTOFF = 1.0f;
+	public static final float DEFAULT_GAZE_BETA = 0.01f;
+
+	// virtual screen bend, 0 is flat and 1 centers it on the viewer, and its tessellation
+	public static final float DEFAULT_SCREEN_CURVATURE = 0.0f;
+	public static final int DEFAULT_SCREEN_SEGMENTS = 32;
+
+	// RDP monitors, each shown as its own virtual screen around the viewer
+	public static final int DEFAULT_SCREEN_MONITORS = 1;
+	public static final int MAX_SCREEN_MONITORS = 4;
+
 	private static SharedPreferences settings;
 	
 	public static void init(Context context)
@@ -54,6 +73,16 @@ public class GlobalSettings {
 			editor.putInt(PREF_POWER_DISCONNECTTIMEOUT, 5);
 		if (!settings.contains(PREF_SECURITY_ACCEPTALLCERTIFICATES))
 			editor.putBoolean(PREF_SECURITY_ACCEPTALLCERTIFICATES, false);
+		if (!settings.contains(PREF_GAZE_MINCUTOFF))
+			editor.putFloat(PREF_GAZE_MINCUTOFF, DEFAULT_GAZE_MIN_CUTOFF);
+		if (!settings.contains(PREF_GAZE_BETA))
+			editor.putFloat(PREF_GAZE_BETA, DEFAULT_GAZE_BETA);
+		if (!settings.contains(PREF_SCREEN_CURVATURE))
+			editor.putFloat(PREF_SCREEN_CURVATURE, DEFAULT_SCREEN_CURVATURE);
+		if (!settings.contains(PREF_SCREEN_SEGMENTS))
+			editor.putInt(PREF_SCREEN_SEGMENTS, DEFAULT_SCREEN_SEGMENTS);
+		if (!settings.contains(PREF_SCREEN_MONITORS))
+			editor.putInt(PREF_SCREEN_MONITORS, DEFAULT_SCREEN_MONITORS);
 		
 		editor.commit();
 	}
@@ -137,5 +166,57 @@ public class GlobalSettings {
 	{
 		return settings.getInt(PREF_POWER_DISCONNECTTIMEOUT, 5);
 	}
+
+	public static void setGazeMinCutoff(float minCutoff)
+	{
+		settings.edit().putFloat(PREF_GAZE_MINCUTOFF, minCutoff).commit();
+	}
+
+	public static float getGazeMinCutoff()
+	{
+		return settings.getFloat(PREF_GAZE_MINCUTOFF, DEFAULT_GAZE_MIN_CUTOFF);
+	}
+
+	public static void setGazeBeta(float beta)
+	{
+		settings.edit().putFloat(PREF_GAZE_BETA, beta).commit();
+	}
+
+	public static float getGazeBeta()
+	{
+		return settings.getFloat(PREF_GAZE_BETA, DEFAULT_GAZE_BETA);
+	}
+
+	public static void setScreenCurvature(float curvature)
+	{
+		settings.edit().putFloat(PREF_SCREEN_CURVATURE, curvature).commit();
+	}
+
+	public static float getScreenCurvature()
+	{
+		return Math.max(0.0f, Math.min(1.0f,
+				settings.getFloat(PREF_SCREEN_CURVATURE, DEFAULT_SCREEN_CURVATURE)));
+	}
+
+	public static void setScreenSegments(int segments)
+	{
+		settings.edit().putInt(PREF_SCREEN_SEGMENTS, segments).commit();
+	}
+
+	public static int getScreenSegments()
+	{
+		return settings.getInt(PREF_SCREEN_SEGMENTS, DEFAULT_SCREEN_SEGMENTS);
+	}
+
+	public static void setScreenMonitors(int monitors)
+	{
+		settings.edit().putInt(PREF_SCREEN_MONITORS, monitors).commit();
+	}
+
+	public static int getScreenMonitors()
+	{
+		return Math.max(1, Math.min(MAX_SCREEN_MONITORS,
+				settings.getInt(PREF_SCREEN_MONITORS, DEFAULT_SCREEN_MONITORS)));
+	}
 	
 }
@@ -0,0 +1,267 @@
+/*
+   Input to photon latency tracer
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.application;
+
+import com.freerdp.freerdpcore.services.LibFreeRDP;
+
+import java.util.Arrays;
+
+/**
+ * Follows one pointer event at a time from {@link LibFreeRDP#sendCursorEvent} to the first
+ * eye drawn from a frame that shows the server's answer to it.
+ *
+ * <p>The probe is tagged with {@link System#nanoTime()} when it is sent. Natively it is
+ * stamped again when FreeRDP sends it to the server and when the first end_paint whose
+ * damage covers the pointer position arrives. The frame published with that damage is
+ * followed through the texture upload into {@link #onDrawn()}. Each stage goes into a log2
+ * histogram that can be read at any time.</p>
+ *
+ * <p>Probes whose damage never comes, e.g. moves over an area that does not react to the
+ * pointer, expire after {@link #TIMEOUT} and are only counted.</p>
+ */
+public class LatencyTracer {
+	public static final int STAGE_QUEUE = 0;   // until FreeRDP sent the event
+	public static final int STAGE_REMOTE = 1;  // network, server and decode until the paint
+	public static final int STAGE_FLUSH = 2;   // until the damage was handed to Java
+	public static final int STAGE_UPLOAD = 3;  // until the frame was in the texture
+	public static final int STAGE_DISPLAY = 4; // until an eye was drawn from it
+	public static final int STAGE_TOTAL = 5;
+	public static final int STAGE_COUNT = 6;
+
+	// bucket i counts samples below 64 << i us, the last one everything above
+	public static final int BUCKET_COUNT = 16;
+	private static final int BUCKET_SHIFT = 6;
+
+	public static final long DEFAULT_INTERVAL = 250;
+	public static final long TIMEOUT = 1000;
+
+	private static final int IDLE = 0;
+	private static final int SENT = 1;
+	private static final int PUBLISHED = 2;
+	private static final int UPLOADED = 3;
+
+	private final long[][] buckets = new long[STAGE_COUNT][BUCKET_COUNT];
+	private final long[] sums = new long[STAGE_COUNT];
+	private final long[] maxima = new long[STAGE_COUNT];
+	private final long[] nativeTimes = new long[LibFreeRDP.PROBE_COUNT];
+	private long samples = 0;
+	private long expired = 0;
+
+	private volatile int state = IDLE;
+	private volatile long intervalNanos = DEFAULT_INTERVAL * 1000000L;
+	private long nextProbe = 0;
+
+	// stage timestamps of the probe in flight, ns
+	private long input;
+	private long dispatched;
+	private long painted;
+	private long flushed;
+	private long uploaded;
+	private long sequence;
+
+	/**
+	 * @param interval minimum time between two probes in ms, 0 traces as often as possible
+	 */
+	public void setInterval(long interval) {
+		intervalNanos = Math.max(interval, 0) * 1000000L;
+	}
+
+	/**
+	 * Called for every pointer event about to be sent.
+	 *
+	 * @return the tag to send the event with, 0 if it is not traced
+	 */
+	public long begin() {
+		long now = System.nanoTime();
+		if (state != IDLE && now - input < TIMEOUT * 1000000L)
+			return 0;
+		if (state == IDLE && now - nextProbe < 0)
+			return 0;
+
+		synchronized (this) {
+			if (state != IDLE) {
+				if (now - input < TIMEOUT * 1000000L)
+					return 0;
+				expired++;
+			} else if (now - nextProbe < 0) {
+				return 0;
+			}
+
+			// never 0, that means untraced
+			input = (now != 0) ? now : 1;
+			state = SENT;
+			return input;
+		}
+	}
+
+	/**
+	 * Called on the RDP thread after a frame was published, picks up the probe once the
+	 * native side saw the damage answering it.
+	 *
+	 * @param frame sequence number of the frame just published
+	 */
+	public void onPublished(int instance, long frame) {
+		if (state != SENT)
+			return;
+
+		synchronized (this) {
+			if (state != SENT || !LibFreeRDP.takeLatencyProbe(instance, nativeTimes))
+				return;
+
+			// a probe that expired in the meantime
+			if (nativeTimes[LibFreeRDP.PROBE_INPUT] != input)
+				return;
+
+			dispatched = nativeTimes[LibFreeRDP.PROBE_DISPATCHED];
+			painted = nativeTimes[LibFreeRDP.PROBE_PAINTED];
+			flushed = System.nanoTime();
+			sequence = frame;
+			state = PUBLISHED;
+		}
+	}
+
+	/**
+	 * Called on the render thread after a frame was uploaded into the texture.
+	 */
+	public void onUploaded(long frame) {
+		if (state != PUBLISHED)
+			return;
+
+		synchronized (this) {
+			if (state != PUBLISHED || frame < sequence)
+				return;
+
+			uploaded = System.nanoTime();
+			state = UPLOADED;
+		}
+	}
+
+	/**
+	 * Called on the render thread after an eye was drawn, completes the probe on the first
+	 * one drawn from the uploaded frame.
+	 */
+	public void onDrawn() {
+		if (state != UPLOADED)
+			return;
+
+		synchronized (this) {
+			if (state != UPLOADED)
+				return;
+
+			long now = System.nanoTime();
+			record(STAGE_QUEUE, dispatched - input);
+			record(STAGE_REMOTE, painted - dispatched);
+			record(STAGE_FLUSH, flushed - painted);
+			record(STAGE_UPLOAD, uploaded - flushed);
+			record(STAGE_DISPLAY, now - uploaded);
+			record(STAGE_TOTAL, now - input);
+			samples++;
+
+			nextProbe = now + intervalNanos;
+			state = IDLE;
+		}
+	}
+
+	/**
+	 * @param out receives the sample counts of the stage, needs room for
+	 *            {@link #BUCKET_COUNT} entries
+	 */
+	public synchronized void getHistogram(int stage, long[] out) {
+		System.arraycopy(buckets[stage], 0, out, 0, BUCKET_COUNT);
+	}
+
+	/**
+	 * @return upper bound of a histogram bucket in us, Long.MAX_VALUE for the last one
+	 */
+	public static long getBucketLimit(int bucket) {
+		return (bucket < BUCKET_COUNT - 1) ? (1L << (bucket + BUCKET_SHIFT)) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param fraction 0 to 1, e.g. 0.95f
+	 * @return upper bound in us of the bucket the percentile falls into, the maximum for
+	 * the last one, 0 without samples
+	 */
+	public synchronized long getPercentile(int stage, float fraction) {
+		if (samples == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * samples);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+			seen += buckets[stage][i];
+			if (seen >= rank)
+				return Math.min(getBucketLimit(i), maxima[stage]);
+		}
+		return maxima[stage];
+	}
+
+	/**
+	 * @return mean in us, 0 without samples
+	 */
+	public synchronized long getMean(int stage) {
+		return (samples > 0) ? sums[stage] / samples : 0;
+	}
+
+	/**
+	 * @return maximum in us
+	 */
+	public synchronized long getMax(int stage) {
+		return maxima[stage];
+	}
+
+	/**
+	 * @return number of completed probes
+	 */
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return number of probes that got no answering paint in time
+	 */
+	public synchronized long getExpired() {
+		return expired;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			Arrays.fill(buckets[i], 0);
+			sums[i] = 0;
+			maxima[i] = 0;
+		}
+		samples = 0;
+		expired = 0;
+		state = IDLE;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Latency probes: ").append(samples).append(" (").append(expired)
+				.append(" expired)");
+		if (samples == 0)
+			return sb.toString();
+
+		String[] names = {"queue", "remote", "flush", "upload", "display", "total"};
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			sb.append(", ").append(names[i]).append(" mean/p95/max ").append(getMean(i))
+					.append('/').append(getPercentile(i, 0.95f)).append('/')
+					.append(getMax(i)).append(" us");
+		}
+		return sb.toString();
+	}
+
+	private void record(int stage, long nanos) {
+		long micros = Math.max(nanos, 0) / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros >> BUCKET_SHIFT);
+		buckets[stage][Math.min(bucket, BUCKET_COUNT - 1)]++;
+		sums[stage] += micros;
+		maxima[stage] = Math.max(maxima[stage], micros);
+	}
+}
@@ -9,8 +9,7 @@
 
 package com.freerdp.freerdpcore.application;
 
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -23,16 +22,19 @@ public class SessionState implements Parcelable
 	private int instance;
 	private BookmarkBase bookmark;
 	private Uri openUri;
-	private Bitmap surface;
+	private volatile LibFreeRDP.Framebuffer framebuffer;
+	private volatile SurfaceRing surfaces;
 	private LibFreeRDP.UIEventListener uiEventListener;
+	private final LatencyTracer latencyTracer = new LatencyTracer();
+	private volatile Rect[] monitors;
+	// pixels copied by the rings of earlier framebuffers, RDP thread only
+	private long pixelsCopied = 0;
 	
 	public SessionState(Parcel parcel)
 	{
 		instance = parcel.readInt();
 		bookmark = parcel.readParcelable(null);
 		openUri = parcel.readParcelable(null);
-
-		surface = parcel.readParcelable(null);
 	}
 	
 	public SessionState(int instance, BookmarkBase bookmark)
@@ -57,8 +59,37 @@ public class SessionState implements Parcelable
 		} else {
 			LibFreeRDP.setConnectionInfo(instance, openUri);
 		}
+		setupMonitors(GlobalSettings.getScreenMonitors());
 		LibFreeRDP.connect(instance);
 	}
+
+	// widest desktop the monitors may span together, the framebuffer, every frame surface
+	// and the textures each hold all of it
+	private static final int MAX_DESKTOP_WIDTH = 8192;
+
+	// every monitor gets the configured desktop size, side by side with the primary one
+	// in the middle, so the virtual screens can be placed around the viewer; monitors that
+	// would not fit into MAX_DESKTOP_WIDTH are left out
+	private void setupMonitors(int count) {
+		LibFreeRDP.Settings settings = new LibFreeRDP.Settings()
+				.put(LibFreeRDP.Settings.DESKTOP_WIDTH, 0)
+				.put(LibFreeRDP.Settings.DESKTOP_HEIGHT, 0);
+		monitors = null;
+		if (!settings.read(instance))
+			return;
+
+		int width = settings.getInt(LibFreeRDP.Settings.DESKTOP_WIDTH);
+		int height = settings.getInt(LibFreeRDP.Settings.DESKTOP_HEIGHT);
+		if (width > 0)
+			count = Math.max(1, Math.min(count, MAX_DESKTOP_WIDTH / width));
+		Rect[] layout = new Rect[count];
+		for (int i = 0; i < count; i++)
+			layout[i] = new Rect(i * width, 0, (i + 1) * width, height);
+
+		if (count > 1 && !LibFreeRDP.setMonitorLayout(instance, layout, count / 2))
+			layout = new Rect[] {layout[0]};
+		monitors = layout;
+	}
 	
 	public int getInstance() {
 		return instance;
@@ -80,12 +111,55 @@ public class SessionState implements Parcelable
 		this.uiEventListener = uiEventListener;
 	}
 
-	public void setSurface(Bitmap surface) {
-		this.surface = surface;
+	/**
+	 * @return the monitors announced to the server in framebuffer coordinates, the primary
+	 * one at index length / 2, or null if the layout is not known
+	 */
+	public Rect[] getMonitors() {
+		return monitors;
 	}
-	
-	public Bitmap getSurface() {
-		return surface;
+
+	public LatencyTracer getLatencyTracer() {
+		return latencyTracer;
+	}
+
+	// the previous framebuffer view is invalidated, its native memory may go away any time
+	public void setFramebuffer(LibFreeRDP.Framebuffer framebuffer) {
+		LibFreeRDP.Framebuffer old = this.framebuffer;
+		if (surfaces != null)
+			pixelsCopied += surfaces.getPixelsCopied();
+		this.framebuffer = framebuffer;
+		this.surfaces = (framebuffer != null) ? new SurfaceRing(framebuffer, SurfaceRing.DEFAULT_SIZE) : null;
+		if (old != null && old != framebuffer)
+			old.invalidate();
+	}
+
+	public LibFreeRDP.Framebuffer getFramebuffer() {
+		return framebuffer;
+	}
+
+	/**
+	 * @return the frame surfaces the renderer samples from, null while there is no framebuffer
+	 */
+	public SurfaceRing getSurfaces() {
+		return surfaces;
+	}
+
+	/**
+	 * @return number of pixels copied into frame surfaces over the whole session. RDP thread only.
+	 */
+	public long getPixelsCopied() {
+		SurfaceRing ring = surfaces;
+		return pixelsCopied + ((ring != null) ? ring.getPixelsCopied() : 0);
+	}
+
+	// called on the RDP thread once the framebuffer holds a complete update
+	public void publishFrame(int[] rects, int count) {
+		SurfaceRing ring = surfaces;
+		if (ring != null) {
+			ring.publish(rects, count);
+			latencyTracer.onPublished(instance, ring.getSequence());
+		}
 	}
 
 	public static final Parcelable.Creator<SessionState> CREATOR = new Parcelable.Creator<SessionState>()
@@ -110,6 +184,5 @@ public class SessionState implements Parcelable
 		out.writeInt(instance);
 		out.writeParcelable(bookmark, flags);
 		out.writeParcelable(openUri, flags);
-		out.writeParcelable(surface, flags);
 	}
 }
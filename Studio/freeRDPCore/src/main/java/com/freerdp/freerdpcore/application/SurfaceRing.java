@@ -0,0 +1,213 @@
+/*
+   Ring of frame surfaces shared between the RDP and the render thread
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.application;
+
+import android.graphics.Rect;
+
+import com.freerdp.freerdpcore.services.LibFreeRDP;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Double or triple buffered copies of the session framebuffer.
+ *
+ * <p>After each update the RDP thread copies the damaged regions from the live framebuffer
+ * into a surface nobody is looking at and publishes it with the next sequence number. The
+ * renderer acquires the newest published surface, uploads it and releases it again. Neither
+ * side ever waits for the other: if the renderer is slower, unread frames are simply
+ * superseded, and the renderer only ever sees complete frames.</p>
+ *
+ * <p>The damage of the last {@link #HISTORY} frames is kept, so a surface only gets the
+ * regions copied that changed since its own frame, and the renderer only uploads what
+ * changed since the frame it uploaded last. Falling further behind costs a full copy.</p>
+ */
+public class SurfaceRing {
+	public static final int DEFAULT_SIZE = 3;
+	public static final int HISTORY = 16;
+
+	private static final int FREE = 0;
+	private static final int WRITING = 1;
+	private static final int READY = 2;
+	private static final int READING = 3;
+
+	private final LibFreeRDP.Framebuffer source;
+	private final FrameSurface[] surfaces;
+	private final AtomicIntegerArray states;
+	private final AtomicInteger latest = new AtomicInteger(-1);
+	private final AtomicLong consumed = new AtomicLong(0);
+	// only written by the RDP thread
+	private volatile long pixelsCopied = 0;
+
+	// everything below is only touched by the RDP thread
+	private final ByteBuffer sourcePixels;
+	private final ByteBuffer[] writeViews;
+	private final DamageAccumulator[] history = new DamageAccumulator[HISTORY];
+	private final DamageAccumulator copyDamage = new DamageAccumulator();
+	private final Rect[] copyRects = new Rect[DamageAccumulator.DEFAULT_CAPACITY];
+	private long sequence = 0;
+
+	public SurfaceRing(LibFreeRDP.Framebuffer source, int size) {
+		this.source = source;
+		this.sourcePixels = source.getBuffer().duplicate();
+
+		size = Math.max(2, size);
+		surfaces = new FrameSurface[size];
+		writeViews = new ByteBuffer[size];
+		states = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			surfaces[i] = new FrameSurface(i, source);
+			writeViews[i] = surfaces[i].getPixels().duplicate();
+		}
+
+		for (int i = 0; i < HISTORY; i++)
+			history[i] = new DamageAccumulator();
+		for (int i = 0; i < copyRects.length; i++)
+			copyRects[i] = new Rect();
+	}
+
+	public int getWidth() {
+		return source.getWidth();
+	}
+
+	public int getHeight() {
+		return source.getHeight();
+	}
+
+	/**
+	 * @return sequence number of the newest published frame. RDP thread only.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return number of pixels copied from the framebuffer into the surfaces so far
+	 */
+	public long getPixelsCopied() {
+		return pixelsCopied;
+	}
+
+	/**
+	 * Publishes a new frame after the framebuffer has been updated, the damage is a list of
+	 * (x, y, width, height) tuples. RDP thread only.
+	 */
+	public boolean publish(int[] rects, int count) {
+		DamageAccumulator frame = history[(int) ((sequence + 1) % HISTORY)];
+		frame.clear();
+		frame.addAll(rects, count);
+		sequence++;
+		return writeFrame();
+	}
+
+	/**
+	 * Takes the newest complete frame, or null if there is nothing newer than the given
+	 * sequence number. Render thread only; the surface has to be handed back with
+	 * {@link #release(FrameSurface)}.
+	 */
+	public FrameSurface acquire(long after) {
+		int idx = latest.get();
+		if (idx < 0 || !states.compareAndSet(idx, READY, READING))
+			return null;
+
+		FrameSurface surface = surfaces[idx];
+		if (surface.sequence <= after) {
+			release(surface);
+			return null;
+		}
+		return surface;
+	}
+
+	/**
+	 * Hands back an acquired surface once it has been uploaded.
+	 */
+	public void release(FrameSurface surface) {
+		int idx = surface.getIndex();
+		consumed.set(Math.max(consumed.get(), surface.sequence));
+		states.set(idx, (latest.get() == idx) ? READY : FREE);
+	}
+
+	// newest surface nobody holds; the unread latest one only if there is nothing else
+	private int claim() {
+		int current = latest.get();
+		for (int i = 0; i < surfaces.length; i++) {
+			if (states.compareAndSet(i, FREE, WRITING))
+				return i;
+		}
+		for (int i = 0; i < surfaces.length; i++) {
+			if (i != current && states.compareAndSet(i, READY, WRITING))
+				return i;
+		}
+		if (current >= 0 && states.compareAndSet(current, READY, WRITING))
+			return current;
+		return -1;
+	}
+
+	// union of the damage of all frames after since up to the current one
+	private void collect(long since, DamageAccumulator out) {
+		out.clear();
+		if (since <= 0 || sequence - since >= HISTORY) {
+			out.add(0, 0, source.getWidth(), source.getHeight());
+			return;
+		}
+		for (long s = since + 1; s <= sequence; s++)
+			out.addFrom(history[(int) (s % HISTORY)]);
+	}
+
+	private boolean writeFrame() {
+		int idx = claim();
+		if (idx < 0)
+			return false;
+
+		FrameSurface surface = surfaces[idx];
+		synchronized (source) {
+			if (!source.isValid()) {
+				states.set(idx, FREE);
+				return false;
+			}
+
+			collect(surface.sequence, copyDamage);
+			int count = copyDamage.drain(copyRects);
+			for (int i = 0; i < count; i++)
+				copyRect(writeViews[idx], surface, copyRects[i]);
+		}
+
+		collect(consumed.get(), surface.uploadDamage);
+		surface.sequence = sequence;
+		states.set(idx, READY);
+
+		int previous = latest.getAndSet(idx);
+		if (previous >= 0 && previous != idx)
+			states.compareAndSet(previous, READY, FREE);
+		return true;
+	}
+
+	private void copyRect(ByteBuffer dst, FrameSurface surface, Rect r) {
+		int right = Math.min(r.right, surface.getWidth());
+		int bottom = Math.min(r.bottom, surface.getHeight());
+		if (right <= r.left || bottom <= r.top)
+			return;
+
+		int bpp = surface.getBytesPerPixel();
+		int srcStride = source.getStride();
+		int dstStride = surface.getStride();
+		int length = (right - r.left) * bpp;
+		pixelsCopied += (long) (right - r.left) * (bottom - r.top);
+
+		for (int row = r.top; row < bottom; row++) {
+			int offset = row * srcStride + r.left * bpp;
+			sourcePixels.limit(offset + length);
+			sourcePixels.position(offset);
+			dst.position(row * dstStride + r.left * bpp);
+			dst.put(sourcePixels);
+		}
+		sourcePixels.clear();
+	}
+}
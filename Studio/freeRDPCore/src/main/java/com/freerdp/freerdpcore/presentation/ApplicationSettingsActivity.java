@@ -65,6 +65,7 @@ public class ApplicationSettingsActivity extends PreferenceActivity implements O
 		// register for preferences changed notification
 		getPreferenceManager().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
 		onSharedPreferenceChanged(getPreferenceManager().getSharedPreferences(), "power.disconnect_timeout");
+		onSharedPreferenceChanged(getPreferenceManager().getSharedPreferences(), "screen.monitors");
 	}
 	
 	@Override
@@ -81,6 +82,12 @@ public class ApplicationSettingsActivity extends PreferenceActivity implements O
 					pref.setSummary(String.format(getResources().getString(R.string.settings_description_after_minutes), val));					
 			}
 		}
+		else if (key.equals("screen.monitors"))
+		{
+			Preference pref = findPreference(key);
+			if (pref != null)
+				pref.setSummary(String.valueOf(sharedPreferences.getInt(key, 1)));
+		}
 	}
 		
 	private boolean deleteDirectory(File dir)
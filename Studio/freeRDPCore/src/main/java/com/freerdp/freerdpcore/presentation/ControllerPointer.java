@@ -0,0 +1,161 @@
+/*
+   Daydream controller pointer for the virtual screen
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.freerdp.freerdpcore.services.LibFreeRDP;
+import com.freerdp.freerdpcore.utils.Mouse;
+import com.google.vr.sdk.controller.Controller;
+import com.google.vr.sdk.controller.ControllerManager;
+
+/**
+ * Uses a Daydream controller as a laser pointer onto the virtual screen.
+ *
+ * <p>The controller state is sampled once per frame on the render thread. Its pointing
+ * direction is cast against the screens like the head gaze, the click button maps to the
+ * left, the app button to the right mouse button and vertical swipes on the touchpad to
+ * the wheel. Everything a frame produces goes to FreeRDP in one input batch.</p>
+ */
+public class ControllerPointer {
+	private static final String TAG = "ControllerPointer";
+
+	// touchpad travel, in pad heights, that makes one wheel notch
+	private static final float SCROLL_STEP = 0.15f;
+
+	private final ControllerManager controllerManager;
+	private final Controller controller;
+	private final GazeCursor cursor;
+	private final LibFreeRDP.InputBatch batch = new LibFreeRDP.InputBatch();
+	private final float[] rotation = new float[16];
+
+	private volatile boolean connected = false;
+
+	// render thread state
+	private boolean clickDown = false;
+	private boolean appDown = false;
+	private boolean touching = false;
+	private float scrollY;
+	private int x = 0;
+	private int y = 0;
+
+	/**
+	 * @param interval minimum time between two pointer moves in ms
+	 */
+	public ControllerPointer(Context context, long interval, float minCutoff, float beta) {
+		cursor = new GazeCursor(interval, minCutoff, beta);
+		controllerManager = new ControllerManager(context, new ControllerManager.EventListener() {
+			@Override
+			public void onApiStatusChanged(int status) {
+				Log.v(TAG, "Controller API status: " +
+						ControllerManager.ApiStatus.toString(status));
+			}
+
+			@Override
+			public void onRecentered() {
+			}
+		});
+		controller = controllerManager.getController();
+		controller.setEventListener(new Controller.EventListener() {
+			@Override
+			public void onConnectionStateChanged(int state) {
+				Log.v(TAG, "Controller state: " + Controller.ConnectionStates.toString(state));
+				connected = (state == Controller.ConnectionStates.CONNECTED);
+			}
+		});
+	}
+
+	public void start() {
+		controllerManager.start();
+	}
+
+	public void stop() {
+		controllerManager.stop();
+		connected = false;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public void setFilter(float minCutoff, float beta) {
+		cursor.setFilter(minCutoff, beta);
+	}
+
+	/**
+	 * Samples the controller and sends the resulting input to the session. Buttons are
+	 * pressed and released where the pointer is, or was last, on the screen.
+	 *
+	 * @param time frame time in ms
+	 * @param eyeZ z coordinate of the camera the pointer ray starts from
+	 */
+	public void update(int instance, long time, float eyeZ, VirtualMonitor[] monitors) {
+		controller.update();
+
+		// the controller points along its -z axis
+		controller.orientation.toRotationMatrix(rotation);
+		boolean hit = cursor.update(time, -rotation[8], -rotation[9], -rotation[10], eyeZ,
+				monitors);
+		if (hit) {
+			x = cursor.getX();
+			y = cursor.getY();
+			if (cursor.poll(time))
+				batch.addCursorMove(x, y, Mouse.getMoveEvent());
+		}
+
+		// presses only start on the screen, releases always go out
+		if (controller.clickButtonState != clickDown && (hit || clickDown)) {
+			clickDown = controller.clickButtonState;
+			batch.addCursorEvent(x, y, Mouse.getLeftButtonEvent(clickDown));
+		}
+		if (controller.appButtonState != appDown && (hit || appDown)) {
+			appDown = controller.appButtonState;
+			batch.addCursorEvent(x, y, Mouse.getRightButtonEvent(appDown));
+		}
+
+		if (controller.isTouching && !controller.clickButtonState) {
+			if (!touching)
+				scrollY = controller.touch.y;
+			touching = true;
+
+			// a finger moving up scrolls down, like dragging the page
+			while (controller.touch.y - scrollY >= SCROLL_STEP) {
+				batch.addCursorEvent(x, y, Mouse.getScrollEvent(false));
+				scrollY += SCROLL_STEP;
+			}
+			while (scrollY - controller.touch.y >= SCROLL_STEP) {
+				batch.addCursorEvent(x, y, Mouse.getScrollEvent(true));
+				scrollY -= SCROLL_STEP;
+			}
+		} else {
+			touching = false;
+		}
+
+		// buttons and scrolling that do not fit into a full queue go out with the next
+		// frame, so no button release is lost; stale moves are dropped
+		batch.send(instance);
+	}
+
+	/**
+	 * Forgets pointer and button state, e.g. for a new session.
+	 */
+	public void reset() {
+		cursor.reset();
+		batch.clear();
+		clickDown = appDown = touching = false;
+		x = y = 0;
+	}
+
+	/**
+	 * @return number of pointer moves sent
+	 */
+	public long getEmitted() {
+		return cursor.getEmitted();
+	}
+}
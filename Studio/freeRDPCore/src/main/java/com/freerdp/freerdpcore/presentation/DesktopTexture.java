@@ -0,0 +1,462 @@
+/*
+   Persistent GL texture holding the remote desktop
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.freerdp.freerdpcore.application.FrameSurface;
+import com.freerdp.freerdpcore.services.LibFreeRDP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Holds the remote desktop, or the part of it one monitor shows, as a grid of GL textures
+ * the virtual screen samples from.
+ *
+ * <p>A single texture caps the desktop at GL_MAX_TEXTURE_SIZE, so the desktop is split into
+ * tiles of at most {@link #TILE_SIZE} pixels. Tile storage is allocated once per desktop size
+ * and color depth, afterwards damage marks the tiles it touches dirty and only those get
+ * their damaged part uploaded with glTexSubImage2D from an acquired frame surface.
+ * All methods must be called on the GL thread.</p>
+ *
+ * <p>With mipmaps enabled the tiles are sampled trilinear. The mip chain is only rebuilt
+ * where a tile was damaged, by the {@link MipmapBuilder} on GLES 3.0, or with
+ * glGenerateMipmap for the whole dirty tile where only GLES2 with NPOT support is around.</p>
+ *
+ * <p>On GLES 3.0 contexts the damage can be staged in a {@link PixelBufferRing} of the
+ * texture instead, so glTexSubImage2D returns right away and the driver transfers the data
+ * asynchronously. Only the damaged part of each tile is staged, tightly packed, and damage
+ * of more than {@link #MAX_STAGING_SIZE} bytes, like the first full upload, goes the
+ * synchronous way.</p>
+ */
+public class DesktopTexture {
+	private static final String TAG = "FreeRDP.DesktopTexture";
+
+	public static final int TILE_SIZE = 1024;
+
+	public static final int MIPMAP_NONE = 0;
+	public static final int MIPMAP_GENERATE = 1;
+	public static final int MIPMAP_DOWNSAMPLE = 2;
+
+	/**
+	 * One texture of the grid, covering desktop pixels [x, x + width) x [y, y + height).
+	 */
+	public static class Tile {
+		private int handle;
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+		private int levels = 1;
+		private boolean dirty = false;
+		private final Rect damage = new Rect();
+
+		Tile(int x, int y, int width, int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		public int getHandle() {
+			return handle;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		// damage is kept in desktop coordinates
+		void markDirty(Rect r) {
+			int l = Math.max(r.left, x);
+			int t = Math.max(r.top, y);
+			int rt = Math.min(r.right, x + width);
+			int b = Math.min(r.bottom, y + height);
+			if (rt <= l || b <= t)
+				return;
+			if (dirty)
+				damage.union(l, t, rt, b);
+			else
+				damage.set(l, t, rt, b);
+			dirty = true;
+		}
+	}
+
+	private Tile[] tiles = new Tile[0];
+	private int left = 0;
+	private int top = 0;
+	private int width = 0;
+	private int height = 0;
+	private final Rect clip = new Rect();
+	private int format = GLES20.GL_RGBA;
+	private int type = GLES20.GL_UNSIGNED_BYTE;
+
+	// GLES2 has no row length, partial rows are packed in here first
+	private ByteBuffer scratch;
+
+	private int mipmapMode = MIPMAP_NONE;
+	private MipmapBuilder mipmapBuilder;
+
+	// largest staging write, bounds the pixel buffers at 3 of these per texture
+	public static final int MAX_STAGING_SIZE = TILE_SIZE * TILE_SIZE * 4;
+
+	private PixelBufferRing pixelBuffers;
+
+	public boolean isAllocated() {
+		return tiles.length > 0 && width > 0 && height > 0;
+	}
+
+	/**
+	 * @return desktop x coordinate of the first texture column
+	 */
+	public int getLeft() {
+		return left;
+	}
+
+	/**
+	 * @return desktop y coordinate of the first texture row
+	 */
+	public int getTop() {
+		return top;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileCount() {
+		return tiles.length;
+	}
+
+	public Tile getTile(int index) {
+		return tiles[index];
+	}
+
+	/**
+	 * (Re)allocates the tile storage for the whole surface.
+	 *
+	 * @see #allocate(FrameSurface, Rect)
+	 */
+	public boolean allocate(FrameSurface surface) {
+		return allocate(surface, null);
+	}
+
+	/**
+	 * (Re)allocates the tile storage. Nothing happens if the storage already matches.
+	 *
+	 * @param surface the surface the updates are coming from
+	 * @param region  the part of the surface to hold, null for all of it
+	 * @return true if the tiles were (re)allocated and need a full upload
+	 */
+	public boolean allocate(FrameSurface surface, Rect region) {
+		int left = (region != null) ? region.left : 0;
+		int top = (region != null) ? region.top : 0;
+		int width = (region != null) ? region.width() : surface.getWidth();
+		int height = (region != null) ? region.height() : surface.getHeight();
+		boolean rgb16 = surface.getFormat() == LibFreeRDP.Framebuffer.FORMAT_RGB16;
+		int newFormat = rgb16 ? GLES20.GL_RGB : GLES20.GL_RGBA;
+		int newType = rgb16 ? GLES20.GL_UNSIGNED_SHORT_5_6_5 : GLES20.GL_UNSIGNED_BYTE;
+
+		if (isAllocated() && left == this.left && top == this.top && width == this.width
+				&& height == this.height && newFormat == format && newType == type)
+			return false;
+
+		releaseTiles();
+
+		int[] maxSize = new int[1];
+		GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+		int tileSize = (maxSize[0] > 0) ? Math.min(TILE_SIZE, maxSize[0]) : TILE_SIZE;
+		int columns = (width + tileSize - 1) / tileSize;
+		int rows = (height + tileSize - 1) / tileSize;
+
+		Log.v(TAG, "Allocating desktop texture " + width + "x" + height + "+" + left + "+" + top
+				+ " as " + columns + "x" + rows + " tiles");
+
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+		this.format = newFormat;
+		this.type = newType;
+
+		int[] handles = new int[columns * rows];
+		GLES20.glGenTextures(handles.length, handles, 0);
+
+		tiles = new Tile[columns * rows];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < columns; col++) {
+				int x = col * tileSize;
+				int y = row * tileSize;
+				Tile tile = new Tile(left + x, top + y, Math.min(tileSize, width - x),
+						Math.min(tileSize, height - y));
+				tile.handle = handles[row * columns + col];
+				if (tile.handle == 0) {
+					throw new RuntimeException("Error creating desktop texture.");
+				}
+				tiles[row * columns + col] = tile;
+
+				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.handle);
+				if (mipmapMode != MIPMAP_NONE) {
+					tile.levels = MipmapBuilder.getLevelCount(tile.width, tile.height);
+					GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+					GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+				} else {
+					GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+					GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+				}
+				// NPOT textures are only complete with clamped wrapping on GLES2
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+				for (int level = 0; level < tile.levels; level++) {
+					GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, level, format,
+							Math.max(1, tile.width >> level), Math.max(1, tile.height >> level), 0,
+							format, type, null);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Selects how the mip chain is maintained, takes effect with the next allocation.
+	 *
+	 * @param mode one of the MIPMAP_ constants
+	 * @param builder needed for {@link #MIPMAP_DOWNSAMPLE}, can be shared between textures and
+	 *                is released by the caller
+	 */
+	public void setMipmaps(int mode, MipmapBuilder builder) {
+		mipmapMode = (mode == MIPMAP_DOWNSAMPLE && builder == null) ? MIPMAP_NONE : mode;
+		mipmapBuilder = builder;
+	}
+
+	public int getMipmapMode() {
+		return mipmapMode;
+	}
+
+	/**
+	 * Switches to the asynchronous pixel buffer upload path. Only valid with a GLES 3.0
+	 * context; the path turns itself off again if the driver fails to map a buffer.
+	 */
+	public void setPixelBuffersEnabled(boolean enabled) {
+		if (enabled && pixelBuffers == null) {
+			pixelBuffers = new PixelBufferRing();
+		} else if (!enabled && pixelBuffers != null) {
+			pixelBuffers.release();
+			pixelBuffers = null;
+		}
+	}
+
+	public boolean isPixelBuffersEnabled() {
+		return pixelBuffers != null && pixelBuffers.isEnabled();
+	}
+
+	/**
+	 * Uploads the damaged regions of a frame surface into the tiles they touch, damage
+	 * outside of the texture is skipped.
+	 *
+	 * @param rects damaged rectangles in surface coordinates, left untouched
+	 * @param count number of valid entries in rects
+	 */
+	public void upload(FrameSurface surface, Rect[] rects, int count) {
+		if (!isAllocated() || surface == null || count <= 0)
+			return;
+
+		// clip against both the texture and the surface, they can briefly disagree on resize
+		int right = Math.min(left + width, surface.getWidth());
+		int bottom = Math.min(top + height, surface.getHeight());
+		boolean dirty = false;
+		for (int i = 0; i < count; i++) {
+			clip.set(rects[i]);
+			if (!clip.intersect(left, top, right, bottom))
+				continue;
+			for (Tile tile : tiles)
+				tile.markDirty(clip);
+			dirty = true;
+		}
+		if (!dirty)
+			return;
+
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, surface.getBytesPerPixel());
+
+		if (!isPixelBuffersEnabled() || !uploadPixelBuffer(surface)) {
+			for (Tile tile : tiles) {
+				if (tile.dirty)
+					uploadClient(surface, tile);
+			}
+		}
+
+		updateMipmaps();
+
+		for (Tile tile : tiles)
+			tile.dirty = false;
+	}
+
+	// only the dirty tiles, and with the downsample pass only their damaged part
+	private void updateMipmaps() {
+		if (mipmapMode == MIPMAP_GENERATE) {
+			for (Tile tile : tiles) {
+				if (!tile.dirty)
+					continue;
+				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.handle);
+				GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+			}
+		} else if (mipmapMode == MIPMAP_DOWNSAMPLE) {
+			mipmapBuilder.begin();
+			for (Tile tile : tiles) {
+				if (!tile.dirty)
+					continue;
+				tile.damage.offset(-tile.x, -tile.y);
+				mipmapBuilder.build(tile.handle, tile.width, tile.height, tile.levels, tile.damage);
+			}
+			mipmapBuilder.end();
+		}
+	}
+
+	// synchronous path, the driver copies from client memory before returning
+	private void uploadClient(FrameSurface surface, Tile tile) {
+		Rect r = tile.damage;
+		ByteBuffer pixels = surface.getPixels();
+		int bpp = surface.getBytesPerPixel();
+		int stride = surface.getStride();
+		int length = r.width() * bpp;
+
+		ByteBuffer src;
+		if (length == stride) {
+			// full surface rows are contiguous already
+			pixels.position(r.top * stride);
+			src = pixels;
+		} else {
+			int size = length * r.height();
+			if (scratch == null || scratch.capacity() < size)
+				scratch = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+			scratch.clear();
+			for (int row = r.top; row < r.bottom; row++) {
+				int offset = row * stride + r.left * bpp;
+				pixels.limit(offset + length);
+				pixels.position(offset);
+				scratch.put(pixels);
+			}
+			pixels.clear();
+			scratch.flip();
+			src = scratch;
+		}
+
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.handle);
+		GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, r.left - tile.x, r.top - tile.y,
+				r.width(), r.height(), format, type, src);
+	}
+
+	// asynchronous path, returns false if the caller has to fall back to uploadClient
+	private boolean uploadPixelBuffer(FrameSurface surface) {
+		int stride = surface.getStride();
+		int bpp = surface.getBytesPerPixel();
+
+		// the damage of every dirty tile, one after the other with tight rows
+		int size = 0;
+		for (Tile tile : tiles) {
+			if (tile.dirty)
+				size += tile.damage.width() * tile.damage.height() * bpp;
+		}
+		if (size > MAX_STAGING_SIZE)
+			return false;
+
+		ByteBuffer mapped = pixelBuffers.map(size);
+		if (mapped == null)
+			return false;
+
+		ByteBuffer src = surface.getPixels();
+		for (Tile tile : tiles) {
+			if (!tile.dirty)
+				continue;
+			Rect r = tile.damage;
+			int length = r.width() * bpp;
+			for (int row = r.top; row < r.bottom; row++) {
+				int offset = row * stride + r.left * bpp;
+				src.limit(offset + length);
+				src.position(offset);
+				mapped.put(src);
+			}
+		}
+		src.clear();
+
+		// buffer contents got lost (e.g. display mode change), try again synchronously
+		if (!pixelBuffers.unmap())
+			return false;
+
+		// rows are packed, the unpack alignment is the pixel size already
+		int offset = 0;
+		for (Tile tile : tiles) {
+			if (!tile.dirty)
+				continue;
+			Rect r = tile.damage;
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.handle);
+			GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, r.left - tile.x, r.top - tile.y,
+					r.width(), r.height(), format, type, offset);
+			offset += r.width() * r.height() * bpp;
+		}
+
+		pixelBuffers.finish();
+		return true;
+	}
+
+	private void releaseTiles() {
+		if (tiles.length == 0)
+			return;
+		int[] handles = new int[tiles.length];
+		for (int i = 0; i < tiles.length; i++)
+			handles[i] = tiles[i].handle;
+		GLES20.glDeleteTextures(handles.length, handles, 0);
+		tiles = new Tile[0];
+	}
+
+	/**
+	 * Deletes the textures. The GL context has to be current.
+	 */
+	public void release() {
+		releaseTiles();
+		if (pixelBuffers != null)
+			pixelBuffers.release();
+		forget();
+	}
+
+	/**
+	 * Drops the handles without touching GL, used when the context (and with it the textures)
+	 * has already been destroyed.
+	 */
+	public void forget() {
+		tiles = new Tile[0];
+		mipmapBuilder = null;
+		mipmapMode = MIPMAP_NONE;
+		if (pixelBuffers != null)
+			pixelBuffers.forget();
+		left = 0;
+		top = 0;
+		width = 0;
+		height = 0;
+	}
+}
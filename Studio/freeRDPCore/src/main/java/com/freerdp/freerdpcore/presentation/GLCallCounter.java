@@ -0,0 +1,170 @@
+/*
+   Per frame GL call statistics of the eye passes
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Counting front for the GL calls the eye passes issue, a microbenchmark of their driver
+ * overhead per frame.
+ *
+ * <p>The eye passes call GL through these wrappers, which forward to GLES20 and GLES30 and
+ * count every call, draw calls separately, so the numbers always follow the code. Counting
+ * is a debug switch read once per GL context:
+ * {@code adb shell setprop log.tag.FreeRDP.GLCalls DEBUG}. While it is on, the mean and
+ * maximum calls per eye are logged every {@link #REPORT_FRAMES} frames, together with the
+ * vertex path (VAO or GLES2) they were measured on. Error checks are not part of the
+ * count. Render thread only.</p>
+ */
+public final class GLCallCounter {
+	private static final String TAG = "FreeRDP.GLCalls";
+
+	public static final int REPORT_FRAMES = 600;
+
+	private static boolean enabled = false;
+	private static String path = "";
+
+	// current eye
+	private static int calls = 0;
+	private static int draws = 0;
+
+	// since the last report
+	private static int frames = 0;
+	private static int eyes = 0;
+	private static long totalCalls = 0;
+	private static long totalDraws = 0;
+	private static int maxCalls = 0;
+
+	private GLCallCounter() {
+	}
+
+	/**
+	 * Reads the debug switch and starts counting from scratch, call for each new GL context.
+	 *
+	 * @param vertexPath name of the vertex path the numbers belong to, for the log
+	 */
+	public static void start(String vertexPath) {
+		enabled = Log.isLoggable(TAG, Log.DEBUG);
+		path = vertexPath;
+		calls = draws = 0;
+		reset();
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Closes the calls of one eye pass.
+	 */
+	public static void endEye() {
+		if (!enabled)
+			return;
+
+		eyes++;
+		totalCalls += calls;
+		totalDraws += draws;
+		maxCalls = Math.max(maxCalls, calls);
+		calls = 0;
+		draws = 0;
+	}
+
+	/**
+	 * Closes a frame and logs the statistics every {@link #REPORT_FRAMES} frames.
+	 */
+	public static void endFrame() {
+		if (!enabled || ++frames < REPORT_FRAMES)
+			return;
+
+		if (eyes > 0) {
+			Log.d(TAG, String.format("%s: %.1f GL calls per eye (max %d), %.1f draw calls, %d eyes",
+					path, (float) totalCalls / eyes, maxCalls, (float) totalDraws / eyes, eyes));
+		}
+		reset();
+	}
+
+	private static void reset() {
+		frames = 0;
+		eyes = 0;
+		totalCalls = 0;
+		totalDraws = 0;
+		maxCalls = 0;
+	}
+
+	private static void count() {
+		if (enabled)
+			calls++;
+	}
+
+	public static void glEnable(int cap) {
+		count();
+		GLES20.glEnable(cap);
+	}
+
+	public static void glClear(int mask) {
+		count();
+		GLES20.glClear(mask);
+	}
+
+	public static void glUseProgram(int program) {
+		count();
+		GLES20.glUseProgram(program);
+	}
+
+	public static void glActiveTexture(int texture) {
+		count();
+		GLES20.glActiveTexture(texture);
+	}
+
+	public static void glBindTexture(int target, int texture) {
+		count();
+		GLES20.glBindTexture(target, texture);
+	}
+
+	public static void glUniformMatrix4fv(int location, int count, boolean transpose,
+			float[] value, int offset) {
+		count();
+		GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+	}
+
+	public static void glBindBuffer(int target, int buffer) {
+		count();
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	public static void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+			int stride, int offset) {
+		count();
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	public static void glEnableVertexAttribArray(int index) {
+		count();
+		GLES20.glEnableVertexAttribArray(index);
+	}
+
+	public static void glGenVertexArrays(int n, int[] arrays, int offset) {
+		count();
+		GLES30.glGenVertexArrays(n, arrays, offset);
+	}
+
+	public static void glBindVertexArray(int array) {
+		count();
+		GLES30.glBindVertexArray(array);
+	}
+
+	public static void glDrawElements(int mode, int count, int type, int offset) {
+		if (enabled) {
+			calls++;
+			draws++;
+		}
+		GLES20.glDrawElements(mode, count, type, offset);
+	}
+}
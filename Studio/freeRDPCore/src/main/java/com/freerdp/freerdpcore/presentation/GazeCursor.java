@@ -0,0 +1,156 @@
+/*
+   Head gaze pointer for the virtual screen
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.graphics.Rect;
+
+import com.freerdp.freerdpcore.utils.OneEuroFilter;
+
+/**
+ * Turns the head (or a controller) direction into a desktop pointer position.
+ *
+ * <p>The view ray is intersected with the {@link ScreenMesh} of each {@link VirtualMonitor},
+ * flat or curved, in the model space of the screen. The hit point is smoothed with a
+ * {@link OneEuroFilter}, so head tremor does not turn into a stream of one pixel moves.
+ * Moves are only reported when the pixel position changed and at most once per interval,
+ * so holding the head still or rendering at a high rate does not flood the connection.
+ * Render thread only.</p>
+ */
+public class GazeCursor {
+	private final long interval;
+	private final OneEuroFilter filterX;
+	private final OneEuroFilter filterY;
+
+	private final float[] hit = new float[2];
+
+	private int x = -1;
+	private int y = -1;
+	private int sentX = -1;
+	private int sentY = -1;
+	private long sentTime = 0;
+
+	private long emitted = 0;
+	private long suppressed = 0;
+
+	/**
+	 * @param interval  minimum time between two reported moves in ms
+	 * @param minCutoff jitter filter cutoff at rest in Hz
+	 * @param beta      jitter filter cutoff increase per pixel/s of gaze speed
+	 */
+	public GazeCursor(long interval, float minCutoff, float beta) {
+		this.interval = interval;
+		this.filterX = new OneEuroFilter(minCutoff, beta);
+		this.filterY = new OneEuroFilter(minCutoff, beta);
+	}
+
+	public void setFilter(float minCutoff, float beta) {
+		filterX.setParameters(minCutoff, beta);
+		filterY.setParameters(minCutoff, beta);
+	}
+
+	/**
+	 * Casts the gaze ray against the screens.
+	 *
+	 * @param time     frame time in ms
+	 * @param headView head view matrix of the frame, rotation only
+	 * @param eyeZ     z coordinate of the camera the ray starts from
+	 * @return true if the gaze hits a screen, the filtered position is then in
+	 * {@link #getX()} and {@link #getY()}
+	 */
+	public boolean update(long time, float[] headView, float eyeZ, VirtualMonitor[] monitors) {
+		// the inverse of a rotation is its transpose, -z of the head is the third row negated
+		return update(time, -headView[2], -headView[6], -headView[10], eyeZ, monitors);
+	}
+
+	/**
+	 * Casts a ray in the given world space direction against the screens, e.g. the pointing
+	 * direction of a controller. The first screen hit wins.
+	 */
+	public boolean update(long time, float dirX, float dirY, float dirZ, float eyeZ,
+			VirtualMonitor[] monitors) {
+		VirtualMonitor monitor = null;
+		for (VirtualMonitor candidate : monitors) {
+			if (candidate.intersect(eyeZ, dirX, dirY, dirZ, hit)) {
+				monitor = candidate;
+				break;
+			}
+		}
+		if (monitor == null)
+			return miss();
+
+		// the monitors share the desktop coordinates, so the filter can follow the gaze
+		// from one screen to the next
+		Rect region = monitor.getRegion();
+		float px = filterX.filter(hit[0], time);
+		float py = filterY.filter(hit[1], time);
+		x = Math.max(region.left, Math.min(region.right - 1, (int) px));
+		y = Math.max(region.top, Math.min(region.bottom - 1, (int) py));
+		return true;
+	}
+
+	/**
+	 * @return true if a move to the current position should be sent now, it is then taken
+	 * as sent
+	 */
+	public boolean poll(long now) {
+		if (x < 0)
+			return false;
+
+		if ((x == sentX && y == sentY) || now - sentTime < interval) {
+			suppressed++;
+			return false;
+		}
+
+		sentX = x;
+		sentY = y;
+		sentTime = now;
+		emitted++;
+		return true;
+	}
+
+	/**
+	 * Forgets the last sent position, e.g. for a new session.
+	 */
+	public void reset() {
+		x = y = sentX = sentY = -1;
+		sentTime = 0;
+		filterX.reset();
+		filterY.reset();
+	}
+
+	/**
+	 * @return number of moves reported by {@link #poll(long)}
+	 */
+	public long getEmitted() {
+		return emitted;
+	}
+
+	/**
+	 * @return number of frames on the screen that did not report a move, because the
+	 * position was unchanged or the interval had not passed yet
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	// the filter must not drag the pointer in from where the gaze left the screen
+	private boolean miss() {
+		x = y = -1;
+		filterX.reset();
+		filterY.reset();
+		return false;
+	}
+}
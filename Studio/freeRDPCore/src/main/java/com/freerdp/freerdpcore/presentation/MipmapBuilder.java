@@ -0,0 +1,149 @@
+/*
+   Damage bounded mip chain maintenance for the desktop tiles
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Rebuilds the mip levels of a texture for a damaged region only.
+ *
+ * <p>Each level is rendered from the level above it with the downsample shader, which takes
+ * a single linear sample from the center of every 2x2 block, and the scissor box keeps the
+ * pass to the damaged part. Rendering into levels other than 0 needs GLES 3.0.
+ * Must be used on the GL thread between {@link #begin()} and {@link #end()}.</p>
+ */
+public class MipmapBuilder {
+	private static final int FLOATS_PER_VERTEX = 4;
+
+	// full screen quad, clip space position and texture coordinate
+	private static final float[] QUAD = new float[] {
+			-1.0f, -1.0f, 0.0f, 0.0f,
+			1.0f, -1.0f, 1.0f, 0.0f,
+			-1.0f, 1.0f, 0.0f, 1.0f,
+			1.0f, 1.0f, 1.0f, 1.0f,
+	};
+
+	private final int program;
+	private final int positionParam;
+	private final int texCoordParam;
+	private final int textureParam;
+	private final FloatBuffer quad;
+
+	private final int[] framebuffer = new int[1];
+	private final int[] savedFramebuffer = new int[1];
+	private final int[] savedViewport = new int[4];
+	private final Rect region = new Rect();
+
+	/**
+	 * @param program linked downsample program, owned by the builder from now on
+	 */
+	public MipmapBuilder(int program) {
+		this.program = program;
+		positionParam = GLES20.glGetAttribLocation(program, "a_Position");
+		texCoordParam = GLES20.glGetAttribLocation(program, "a_TexCoordinate");
+		textureParam = GLES20.glGetUniformLocation(program, "u_Texture");
+
+		ByteBuffer bb = ByteBuffer.allocateDirect(QUAD.length * 4);
+		bb.order(ByteOrder.nativeOrder());
+		quad = bb.asFloatBuffer();
+		quad.put(QUAD);
+		quad.position(0);
+
+		GLES20.glGenFramebuffers(1, framebuffer, 0);
+	}
+
+	public static int getLevelCount(int width, int height) {
+		int levels = 1;
+		for (int size = Math.max(width, height); size > 1; size >>= 1)
+			levels++;
+		return levels;
+	}
+
+	/**
+	 * Saves the framebuffer and viewport the renderer is using and sets up the pass.
+	 */
+	public void begin() {
+		GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, savedFramebuffer, 0);
+		GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, savedViewport, 0);
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+		GLES20.glDisable(GLES20.GL_CULL_FACE);
+		GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+
+		GLES20.glUseProgram(program);
+		quad.position(0);
+		GLES20.glVertexAttribPointer(positionParam, 2, GLES20.GL_FLOAT, false,
+				FLOATS_PER_VERTEX * 4, quad);
+		quad.position(2);
+		GLES20.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false,
+				FLOATS_PER_VERTEX * 4, quad);
+		GLES20.glEnableVertexAttribArray(positionParam);
+		GLES20.glEnableVertexAttribArray(texCoordParam);
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glUniform1i(textureParam, 0);
+	}
+
+	/**
+	 * Renders levels 1 to levels - 1 of the texture, limited to the damaged region.
+	 *
+	 * @param damage damaged region of level 0 in texel coordinates
+	 */
+	public void build(int texture, int width, int height, int levels, Rect damage) {
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+
+		region.set(damage);
+		for (int level = 1; level < levels; level++) {
+			width = Math.max(1, width / 2);
+			height = Math.max(1, height / 2);
+			// round outwards, a partially covered block still changes
+			region.set(region.left / 2, region.top / 2,
+					Math.min(width, (region.right + 1) / 2), Math.min(height, (region.bottom + 1) / 2));
+			if (region.isEmpty())
+				break;
+
+			// only sample the level above, so the level we render into is not read at the same time
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES30.GL_TEXTURE_BASE_LEVEL, level - 1);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAX_LEVEL, level - 1);
+			GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+					GLES20.GL_TEXTURE_2D, texture, level);
+
+			GLES20.glViewport(0, 0, width, height);
+			GLES20.glScissor(region.left, region.top, region.width(), region.height());
+			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, QUAD.length / FLOATS_PER_VERTEX);
+		}
+
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES30.GL_TEXTURE_BASE_LEVEL, 0);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAX_LEVEL, levels - 1);
+	}
+
+	/**
+	 * Restores what {@link #begin()} changed. Depth test and culling are left to the renderer.
+	 */
+	public void end() {
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+				GLES20.GL_TEXTURE_2D, 0, 0);
+		GLES20.glDisableVertexAttribArray(positionParam);
+		GLES20.glDisableVertexAttribArray(texCoordParam);
+		GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, savedFramebuffer[0]);
+		GLES20.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+	}
+
+	public void release() {
+		GLES20.glDeleteFramebuffers(1, framebuffer, 0);
+		GLES20.glDeleteProgram(program);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+   Ring of pixel buffer objects for asynchronous texture uploads
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Staging buffers the desktop textures upload their damage through, needs GLES 3.0.
+ *
+ * <p>Each texture has its own ring, so a buffer is only written again after the texture's
+ * next two uploads, and a fence per buffer tells when the transfer that last read from it
+ * has completed. The buffers are sized for the largest upload asked for so far, which the
+ * texture keeps to its damage.</p>
+ *
+ * <p>If the driver fails to map a buffer the ring disables itself and the texture falls back
+ * to synchronous uploads. All methods must be called on the GL thread.</p>
+ */
+public class PixelBufferRing {
+	private static final String TAG = "FreeRDP.PixelBufferRing";
+
+	public static final int SIZE = 3;
+
+	private final int[] buffers = new int[SIZE];
+	private final long[] fences = new long[SIZE];
+	private int capacity = 0;
+	private int next = 0;
+	private int current = -1;
+	private boolean enabled = true;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Binds the next buffer as GL_PIXEL_UNPACK_BUFFER and maps its first size bytes for
+	 * writing. If the GPU still reads from it the storage is orphaned instead of waiting.
+	 *
+	 * @return the mapped bytes, or null with nothing bound if the buffer could not be mapped
+	 */
+	public ByteBuffer map(int size) {
+		if (size > capacity) {
+			release();
+			GLES30.glGenBuffers(SIZE, buffers, 0);
+			for (int i = 0; i < SIZE; i++) {
+				GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffers[i]);
+				GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+			}
+			capacity = size;
+		}
+
+		current = next;
+		next = (current + 1) % SIZE;
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffers[current]);
+
+		boolean busy = false;
+		if (fences[current] != 0) {
+			int status = GLES30.glClientWaitSync(fences[current], 0, 0);
+			busy = (status == GLES30.GL_TIMEOUT_EXPIRED);
+			GLES30.glDeleteSync(fences[current]);
+			fences[current] = 0;
+		}
+		if (busy)
+			GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, capacity, null, GLES30.GL_STREAM_DRAW);
+
+		ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size,
+				GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT | GLES30.GL_MAP_UNSYNCHRONIZED_BIT);
+		if (mapped == null) {
+			Log.w(TAG, "Mapping pixel buffer failed, falling back to synchronous uploads");
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+			current = -1;
+			enabled = false;
+		}
+		return mapped;
+	}
+
+	/**
+	 * Unmaps the buffer of the last {@link #map(int)}, it stays bound for the uploads.
+	 *
+	 * @return false with nothing bound if the contents got lost (e.g. display mode change)
+	 */
+	public boolean unmap() {
+		if (GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER))
+			return true;
+
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+		current = -1;
+		return false;
+	}
+
+	/**
+	 * Fences the uploads issued from the bound buffer and unbinds it.
+	 */
+	public void finish() {
+		if (current >= 0)
+			fences[current] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+		current = -1;
+	}
+
+	/**
+	 * Deletes the buffers. The GL context has to be current.
+	 */
+	public void release() {
+		for (int i = 0; i < SIZE; i++) {
+			if (fences[i] != 0)
+				GLES30.glDeleteSync(fences[i]);
+		}
+		if (capacity != 0)
+			GLES30.glDeleteBuffers(SIZE, buffers, 0);
+		forget();
+	}
+
+	/**
+	 * Drops the handles without touching GL, used when the context (and with it the buffers)
+	 * has already been destroyed.
+	 */
+	public void forget() {
+		for (int i = 0; i < SIZE; i++) {
+			buffers[i] = 0;
+			fences[i] = 0;
+		}
+		capacity = 0;
+		next = 0;
+		current = -1;
+	}
+}
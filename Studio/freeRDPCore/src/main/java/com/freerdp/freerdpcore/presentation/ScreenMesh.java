@@ -0,0 +1,434 @@
+/*
+   Virtual screen geometry, flat or bent around the viewer
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds the virtual screen as a section of a vertical cylinder and keeps it in a vertex
+ * and an index buffer object.
+ *
+ * <p>In model space the screen is centered on the origin and faces +z, a radius of 0 gives
+ * the flat quad in the z = 0 plane. Otherwise the screen keeps its width as arc length and
+ * bends towards the viewer around an axis at (0, y, radius), so a radius equal to the
+ * screen distance puts every column at the same distance from the eye.</p>
+ *
+ * <p>Every desktop tile gets its own strip of quads, split into columns so that a curved
+ * screen has about {@link #getSegments()} columns across its whole width, with texture
+ * coordinates spanning the tile. Vertices hold position and texture coordinates
+ * interleaved. The buffers are only rebuilt by {@link #update()} after the shape or the
+ * tile layout changed. With vertex array objects (GLES3) the attribute state is recorded
+ * once, otherwise {@link #bind()} points the attributes again every time. The bind and draw
+ * calls go through {@link GLCallCounter} as part of the eye passes.
+ * All GL methods must be called on the GL thread.</p>
+ */
+public class ScreenMesh {
+	public static final int DEFAULT_SEGMENTS = 32;
+
+	private static final int POSITION_SIZE = 3;
+	private static final int TEXCOORD_SIZE = 2;
+	private static final int FLOATS_PER_VERTEX = POSITION_SIZE + TEXCOORD_SIZE;
+	private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+	private static final int INDICES_PER_QUAD = 6;
+	// indices are unsigned shorts into the whole vertex buffer
+	private static final int MAX_VERTICES = 65536;
+	public static final int MAX_SEGMENTS = MAX_VERTICES / 2 - 1;
+
+	private float width;
+	private float height;
+	private float radius;
+	private int segments = DEFAULT_SEGMENTS;
+
+	// left, top, right, bottom of each tile as fractions of the desktop
+	private float[] tileBounds = {0.0f, 0.0f, 1.0f, 1.0f};
+	private boolean dirty = true;
+
+	private int vertexBuffer = 0;
+	private int indexBuffer = 0;
+	private int[] tileOffsets = new int[0];
+	private int[] tileCounts = new int[0];
+
+	private int positionParam = -1;
+	private int texCoordParam = -1;
+	private boolean vertexArraysEnabled = false;
+	private int vertexArray = 0;
+
+	/**
+	 * @param radius cylinder radius, 0 for a flat screen
+	 * @return true if the shape changed
+	 */
+	public boolean setShape(float width, float height, float radius) {
+		// at most half a cylinder, more would face away from the viewer at the edges
+		if (radius > 0.0f)
+			radius = Math.max(radius, width / (float) Math.PI);
+		else
+			radius = 0.0f;
+
+		if (width == this.width && height == this.height && radius == this.radius)
+			return false;
+
+		this.width = width;
+		this.height = height;
+		this.radius = radius;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * @param segments columns across the width of a curved screen, at most
+	 *                 {@link #MAX_SEGMENTS}. Fewer are used if the columns of all tiles
+	 *                 together would not fit the 16 bit indices.
+	 */
+	public void setSegments(int segments) {
+		segments = Math.max(1, Math.min(segments, MAX_SEGMENTS));
+		if (segments != this.segments) {
+			this.segments = segments;
+			dirty |= (radius > 0.0f);
+		}
+	}
+
+	/**
+	 * Takes over the tile layout of the texture, a single tile showing the whole texture
+	 * while it is not allocated.
+	 */
+	public void setTiles(DesktopTexture texture) {
+		float[] bounds;
+		if (!texture.isAllocated()) {
+			bounds = new float[] {0.0f, 0.0f, 1.0f, 1.0f};
+		} else {
+			bounds = new float[texture.getTileCount() * 4];
+			for (int i = 0; i < texture.getTileCount(); i++) {
+				DesktopTexture.Tile tile = texture.getTile(i);
+				int x = tile.getX() - texture.getLeft();
+				int y = tile.getY() - texture.getTop();
+				bounds[i * 4] = (float) x / texture.getWidth();
+				bounds[i * 4 + 1] = (float) y / texture.getHeight();
+				bounds[i * 4 + 2] = (float) (x + tile.getWidth()) / texture.getWidth();
+				bounds[i * 4 + 3] = (float) (y + tile.getHeight()) / texture.getHeight();
+			}
+		}
+
+		if (!Arrays.equals(bounds, tileBounds)) {
+			tileBounds = bounds;
+			dirty = true;
+		}
+	}
+
+	public float getWidth() {
+		return width;
+	}
+
+	public float getHeight() {
+		return height;
+	}
+
+	public float getRadius() {
+		return radius;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	public int getTileCount() {
+		return tileCounts.length;
+	}
+
+	/**
+	 * @return z of the center of a sphere around the screen in model space, x and y are 0
+	 */
+	public float getBoundsCenterZ() {
+		// a curved screen bends its edges towards +z
+		return (radius > 0.0f) ? getEdgeDepth() / 2.0f : 0.0f;
+	}
+
+	/**
+	 * @return radius of a sphere around the screen, see {@link #getBoundsCenterZ()}
+	 */
+	public float getBoundsRadius() {
+		float halfWidth = width / 2.0f;
+		if (radius > 0.0f)
+			halfWidth = radius * (float) Math.sin(width / 2.0f / radius);
+		float halfDepth = getBoundsCenterZ();
+		float halfHeight = height / 2.0f;
+		return (float) Math.sqrt(halfWidth * halfWidth + halfDepth * halfDepth
+				+ halfHeight * halfHeight);
+	}
+
+	private float getEdgeDepth() {
+		return radius * (1.0f - (float) Math.cos(width / 2.0f / radius));
+	}
+
+	/**
+	 * Rebuilds the buffers if the shape or the tiles changed since the last call.
+	 *
+	 * @return true if the buffers were rebuilt
+	 */
+	public boolean update() {
+		if (!dirty && vertexBuffer != 0)
+			return false;
+
+		int tileCount = tileBounds.length / 4;
+		int[] columns = new int[tileCount];
+		// every tile row repeats the columns, halve them until all vertices can be indexed,
+		// a single column per tile always fits the few tiles a texture is split into
+		int vertexCount = countColumns(columns, segments);
+		for (int fewer = segments / 2; vertexCount > MAX_VERTICES && fewer > 0; fewer /= 2)
+			vertexCount = countColumns(columns, fewer);
+
+		int indexCount = 0;
+		for (int i = 0; i < tileCount; i++)
+			indexCount += columns[i] * INDICES_PER_QUAD;
+
+		FloatBuffer vertices = ByteBuffer.allocateDirect(vertexCount * STRIDE)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		ShortBuffer indices = ByteBuffer.allocateDirect(indexCount * 2)
+				.order(ByteOrder.nativeOrder()).asShortBuffer();
+		tileOffsets = new int[tileCount];
+		tileCounts = new int[tileCount];
+
+		int base = 0;
+		for (int i = 0; i < tileCount; i++) {
+			float left = tileBounds[i * 4];
+			float top = tileBounds[i * 4 + 1];
+			float right = tileBounds[i * 4 + 2];
+			float bottom = tileBounds[i * 4 + 3];
+			float y0 = (0.5f - top) * height;
+			float y1 = (0.5f - bottom) * height;
+
+			for (int c = 0; c <= columns[i]; c++) {
+				float s = (float) c / columns[i];
+				putColumn(vertices, (left + (right - left) * s - 0.5f) * width, y0, y1, s);
+			}
+
+			tileOffsets[i] = indices.position();
+			tileCounts[i] = columns[i] * INDICES_PER_QUAD;
+			for (int c = 0; c < columns[i]; c++) {
+				// top left, bottom left, top right and bottom left, bottom right, top right
+				short topLeft = (short) (base + c * 2);
+				indices.put(topLeft).put((short) (topLeft + 1)).put((short) (topLeft + 2));
+				indices.put((short) (topLeft + 1)).put((short) (topLeft + 3)).put((short) (topLeft + 2));
+			}
+			base += (columns[i] + 1) * 2;
+		}
+		vertices.position(0);
+		indices.position(0);
+
+		if (vertexBuffer == 0) {
+			int[] handles = new int[2];
+			GLES20.glGenBuffers(2, handles, 0);
+			vertexBuffer = handles[0];
+			indexBuffer = handles[1];
+		}
+
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexCount * STRIDE, vertices,
+				GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexCount * 2, indices,
+				GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+		dirty = false;
+		return true;
+	}
+
+	// fills in the columns of each tile and returns the number of vertices they need
+	private int countColumns(int[] columns, int segments) {
+		int vertexCount = 0;
+		for (int i = 0; i < columns.length; i++) {
+			float span = tileBounds[i * 4 + 2] - tileBounds[i * 4];
+			columns[i] = (radius > 0.0f) ? Math.max(1, (int) Math.ceil(span * segments)) : 1;
+			vertexCount += (columns[i] + 1) * 2;
+		}
+		return vertexCount;
+	}
+
+	// top and bottom vertex of the column at arc position x
+	private void putColumn(FloatBuffer vertices, float x, float y0, float y1, float s) {
+		float px = x;
+		float pz = 0.0f;
+		if (radius > 0.0f) {
+			float angle = x / radius;
+			px = (float) Math.sin(angle) * radius;
+			pz = (1.0f - (float) Math.cos(angle)) * radius;
+		}
+
+		vertices.put(px).put(y0).put(pz).put(s).put(0.0f);
+		vertices.put(px).put(y1).put(pz).put(s).put(1.0f);
+	}
+
+	/**
+	 * Sets the attribute locations of the program the mesh is drawn with, pass -1 for
+	 * attributes it does not have.
+	 */
+	public void setAttributes(int positionParam, int texCoordParam) {
+		if (positionParam == this.positionParam && texCoordParam == this.texCoordParam)
+			return;
+
+		this.positionParam = positionParam;
+		this.texCoordParam = texCoordParam;
+		releaseVertexArray();
+	}
+
+	/**
+	 * Records the attribute state in a vertex array object, needs GLES3.
+	 */
+	public void setVertexArraysEnabled(boolean enabled) {
+		if (enabled != vertexArraysEnabled)
+			releaseVertexArray();
+		vertexArraysEnabled = enabled;
+	}
+
+	public boolean isVertexArraysEnabled() {
+		return vertexArraysEnabled;
+	}
+
+	/**
+	 * Makes the attributes and indices of the mesh current for {@link #drawTile(int)}.
+	 */
+	public void bind() {
+		if (vertexArraysEnabled && vertexArray != 0) {
+			GLCallCounter.glBindVertexArray(vertexArray);
+			return;
+		}
+
+		if (vertexArraysEnabled) {
+			int[] handles = new int[1];
+			GLCallCounter.glGenVertexArrays(1, handles, 0);
+			vertexArray = handles[0];
+			GLCallCounter.glBindVertexArray(vertexArray);
+		}
+
+		GLCallCounter.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+		if (positionParam >= 0) {
+			GLCallCounter.glVertexAttribPointer(positionParam, POSITION_SIZE, GLES20.GL_FLOAT,
+					false, STRIDE, 0);
+			GLCallCounter.glEnableVertexAttribArray(positionParam);
+		}
+		if (texCoordParam >= 0) {
+			GLCallCounter.glVertexAttribPointer(texCoordParam, TEXCOORD_SIZE, GLES20.GL_FLOAT,
+					false, STRIDE, POSITION_SIZE * 4);
+			GLCallCounter.glEnableVertexAttribArray(texCoordParam);
+		}
+		// the pointers keep the buffer, other passes still use client side arrays
+		GLCallCounter.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		GLCallCounter.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+	}
+
+	public void drawTile(int index) {
+		GLCallCounter.glDrawElements(GLES20.GL_TRIANGLES, tileCounts[index],
+				GLES20.GL_UNSIGNED_SHORT, tileOffsets[index] * 2);
+	}
+
+	/**
+	 * Restores the default attribute state other passes rely on.
+	 */
+	public void unbind() {
+		if (vertexArraysEnabled)
+			GLCallCounter.glBindVertexArray(0);
+		else
+			GLCallCounter.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Intersects a model space ray with the front of the screen.
+	 *
+	 * @param out receives the hit as desktop fractions (u, v), from the top left corner
+	 * @return true if the ray hits the screen
+	 */
+	public boolean intersect(float originX, float originY, float originZ, float dirX,
+			float dirY, float dirZ, float[] out) {
+		float x;
+		float y;
+		float arc;
+		if (radius <= 0.0f) {
+			// the screen faces +z, looking away from or along it never hits
+			if (dirZ >= -1e-6f)
+				return false;
+
+			float t = -originZ / dirZ;
+			if (t <= 0.0f)
+				return false;
+
+			x = originX + t * dirX;
+			y = originY + t * dirY;
+			arc = x;
+		} else {
+			// x^2 + (z - radius)^2 = radius^2 in the xz plane, the nearest hit of the inside
+			float qz = originZ - radius;
+			float a = dirX * dirX + dirZ * dirZ;
+			float b = 2.0f * (originX * dirX + qz * dirZ);
+			float c = originX * originX + qz * qz - radius * radius;
+			float discriminant = b * b - 4.0f * a * c;
+			if (a < 1e-12f || discriminant < 0.0f)
+				return false;
+
+			float root = (float) Math.sqrt(discriminant);
+			float t = (-b - root) / (2.0f * a);
+			float px = originX + t * dirX;
+			float pz = originZ + t * dirZ;
+			// the inner side faces the axis, it is only seen moving away from it
+			if (t <= 0.0f || px * dirX + (pz - radius) * dirZ <= 0.0f) {
+				t = (-b + root) / (2.0f * a);
+				px = originX + t * dirX;
+				pz = originZ + t * dirZ;
+				if (t <= 0.0f || px * dirX + (pz - radius) * dirZ <= 0.0f)
+					return false;
+			}
+
+			x = px;
+			y = originY + t * dirY;
+			arc = radius * (float) Math.atan2(x, radius - pz);
+		}
+
+		float u = arc / width + 0.5f;
+		float v = 0.5f - y / height;
+		if (u < 0.0f || u >= 1.0f || v < 0.0f || v >= 1.0f)
+			return false;
+
+		out[0] = u;
+		out[1] = v;
+		return true;
+	}
+
+	/**
+	 * Deletes the buffers. The GL context has to be current.
+	 */
+	public void release() {
+		releaseVertexArray();
+		if (vertexBuffer != 0)
+			GLES20.glDeleteBuffers(2, new int[] {vertexBuffer, indexBuffer}, 0);
+		forget();
+	}
+
+	private void releaseVertexArray() {
+		if (vertexArray != 0)
+			GLES30.glDeleteVertexArrays(1, new int[] {vertexArray}, 0);
+		vertexArray = 0;
+	}
+
+	/**
+	 * Drops the handles without touching GL, used when the context (and with it the buffers)
+	 * has already been destroyed.
+	 */
+	public void forget() {
+		vertexBuffer = 0;
+		indexBuffer = 0;
+		vertexArray = 0;
+		dirty = true;
+	}
+}
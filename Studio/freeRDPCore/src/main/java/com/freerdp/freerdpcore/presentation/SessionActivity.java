@@ -28,6 +28,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -35,7 +36,6 @@ import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Bitmap.Config;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.opengl.GLES20;
@@ -44,6 +44,7 @@ import android.opengl.Matrix;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.View;
@@ -51,10 +52,12 @@ import android.view.ViewTreeObserver.OnGlobalLayoutListener;
 import android.widget.Toast;
 
 import com.freerdp.freerdpcore.R;
+import com.freerdp.freerdpcore.application.DamageAccumulator;
+import com.freerdp.freerdpcore.application.FrameSurface;
 import com.freerdp.freerdpcore.application.GlobalApp;
 import com.freerdp.freerdpcore.application.GlobalSettings;
 import com.freerdp.freerdpcore.application.SessionState;
-import com.freerdp.freerdpcore.application.WorldLayoutData;
+import com.freerdp.freerdpcore.application.SurfaceRing;
 import com.freerdp.freerdpcore.domain.BookmarkBase;
 import com.freerdp.freerdpcore.domain.ConnectionReference;
 import com.freerdp.freerdpcore.domain.ManualBookmark;
@@ -72,9 +75,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import javax.microedition.khronos.egl.EGLConfig;
 
 /**
@@ -101,8 +101,10 @@ public class SessionActivity extends GvrActivity implements
 					break;
 				}
 				case SEND_MOVE_EVENT: {
-					LibFreeRDP.sendCursorEvent(session.getInstance(), msg.arg1,
-							msg.arg2, Mouse.getMoveEvent());
+					SessionState state = session;
+					if (state != null)
+						LibFreeRDP.sendCursorEvent(state.getInstance(), msg.arg1,
+								msg.arg2, Mouse.getMoveEvent());
 					break;
 				}
 			}
@@ -175,6 +177,10 @@ public class SessionActivity extends GvrActivity implements
 
 		private void OnDisconnected(Context context) {
 			Log.v(TAG, "OnDisconnected");
+			Log.v(TAG, "Gaze moves sent: " + gazeCursor.getEmitted() + ", suppressed: " +
+					gazeCursor.getSuppressed() + ", controller moves sent: " +
+					controllerPointer.getEmitted());
+			Log.v(TAG, "Screens culled: " + culledScreens);
 
 			// remove pending move events
 			uiHandler.removeMessages(UIHandler.SEND_MOVE_EVENT);
@@ -187,8 +193,8 @@ public class SessionActivity extends GvrActivity implements
 	public static final String PARAM_CONNECTION_REFERENCE = "conRef";
 	public static final String PARAM_INSTANCE = "instance";
 
-	private Bitmap bitmap;
-	private SessionState session;
+	// also read by the renderer to find the frame surfaces
+	private volatile SessionState session;
 
 	private UIHandler uiHandler;
 
@@ -210,24 +216,10 @@ public class SessionActivity extends GvrActivity implements
 
 	private static final float CAMERA_Z = 0.01f;
 
-	private static final int COORDS_PER_VERTEX = 3;
-
-	// We keep the light always position just above the user.
-	private static final float[] LIGHT_POS_IN_WORLD_SPACE = new float[] {0.0f, 2.0f, 0.0f, 1.0f};
-
-	private final float[] lightPosInEyeSpace = new float[4];
-
-	private FloatBuffer screenVertices;
-	private FloatBuffer screenNormals;
-	private FloatBuffer screenTextureCoords;
-
 	private int screenProgram;
 
 	private int screenPositionParam;
-	private int screenNormalParam;
 	private int screenTextureCoordsParam;
-	private int screenModelParam;
-	private int screenModelViewParam;
 	private int screenModelViewProjectionParam;
 	private int screenTextureParam;
 
@@ -235,16 +227,47 @@ public class SessionActivity extends GvrActivity implements
 	private float[] view;
 	private float[] headView;
 	private float[] modelViewProjection;
-	private float[] modelView;
-	private float[] modelScreen;
 
 	private float screenDistance = 12f;
 	private float screenWidth = 19.2f;
 	private float screenHeight = 10.8f;
 
-	// This is a handle to our texture data.
+	// This is a handle to the placeholder texture shown until the desktop arrives.
 	private int textureDataHandle;
 
+	// One virtual screen per RDP monitor, each with its own persistent texture the remote
+	// desktop is uploaded into. A single one shows the placeholder until the desktop arrives.
+	private VirtualMonitor[] monitors = new VirtualMonitor[0];
+	private Rect[] monitorLayout;
+
+	// degrees left free between two neighbouring screens
+	private static final float MONITOR_GAP = 2.0f;
+
+	// eye frustum the screens are culled against, and how many draws that saved
+	private final ViewFrustum frustum = new ViewFrustum();
+	private volatile long culledScreens = 0;
+
+	// texture and mesh options of the current GL context, applied to every monitor
+	private int mipmapMode = DesktopTexture.MIPMAP_NONE;
+	private MipmapBuilder mipmapBuilder;
+	private boolean pixelBuffersEnabled = false;
+	private boolean vertexArraysEnabled = false;
+	private float screenRadius = 0.0f;
+	private int screenSegments = ScreenMesh.DEFAULT_SEGMENTS;
+
+	// Frame the texture currently holds, only touched on the GL thread
+	private SurfaceRing uploadedRing;
+	private long uploadedSequence;
+	private final Rect[] dirtyRects = new Rect[DamageAccumulator.DEFAULT_CAPACITY];
+
+	// at most 50 pointer moves per second, plenty for a head driven cursor
+	private static final long GAZE_MOVE_INTERVAL = 20;
+	private final GazeCursor gazeCursor = new GazeCursor(GAZE_MOVE_INTERVAL,
+			GlobalSettings.DEFAULT_GAZE_MIN_CUTOFF, GlobalSettings.DEFAULT_GAZE_BETA);
+
+	// takes over from the gaze cursor while a Daydream controller is connected
+	private ControllerPointer controllerPointer;
+
 	private Vibrator vibrator;
 
 	/**
@@ -278,6 +301,15 @@ public class SessionActivity extends GvrActivity implements
 		return shader;
 	}
 
+	private int loadGLProgram(int vertexResId, int fragmentResId) {
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, loadGLShader(GLES20.GL_VERTEX_SHADER, vertexResId));
+		GLES20.glAttachShader(program, loadGLShader(GLES20.GL_FRAGMENT_SHADER, fragmentResId));
+		GLES20.glLinkProgram(program);
+		checkGLError("Link program");
+		return program;
+	}
+
 	/**
 	 * TextureHelper from http://www.learnopengles.com/
 	 * https://github.com/learnopengles/Learn-OpenGLES-Tutorials/
@@ -321,42 +353,6 @@ public class SessionActivity extends GvrActivity implements
 		return textureHandle[0];
 	}
 
-	/**
-	 *
-	 * @param bmp
-	 * @return
-     */
-	public int updateTexture(final Bitmap bmp)
-	{
-		final int[] textureHandle = new int[1];
-
-		GLES20.glGenTextures(1, textureHandle, 0);
-
-		if (textureHandle[0] != 0) {
-			// Bind to the texture in OpenGL
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
-
-			// Set filtering
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST); // GLES20.GL_LINEAR);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST); // GLES20.GL_LINEAR);
-
-			// Load the bitmap into the bound texture.
-			GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bmp, 0);
-			// TODO: ETC2 compression later: glCompressedTexImage2D
-			// off-line: http://malideveloper.arm.com/resources/tools/mali-gpu-texture-compression-tool/
-			// on-line: https://github.com/AndrewJo/ETCPack
-
-			// Recycle the bitmap, since its data has been loaded into OpenGL.
-//			bmp.recycle();
-		}
-
-		if (textureHandle[0] == 0) {
-			throw new RuntimeException("Error loading texture.");
-		}
-
-		return textureHandle[0];
-	}
-
 	/**
 	 * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
 	 *
@@ -376,6 +372,11 @@ public class SessionActivity extends GvrActivity implements
 		GvrView gvrView = (GvrView) findViewById(R.id.gvr_view);
 		//gvrView.setEGLConfigChooser(8, 8, 8, 8, 16, 8);
 
+		// GLES 3.0 allows asynchronous texture uploads, see DesktopTexture
+		ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		if (activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000)
+			gvrView.setEGLContextClientVersion(3);
+
 		gvrView.setRenderer(this);
 		gvrView.setTransitionViewEnabled(true);
 
@@ -392,6 +393,13 @@ public class SessionActivity extends GvrActivity implements
 	@Override
 	public void onRendererShutdown() {
 		Log.i(TAG, "onRendererShutdown");
+		for (VirtualMonitor monitor : monitors)
+			monitor.release();
+		monitors = new VirtualMonitor[0];
+		monitorLayout = null;
+		if (mipmapBuilder != null)
+			mipmapBuilder.release();
+		mipmapBuilder = null;
 	}
 
 	@Override
@@ -412,45 +420,6 @@ public class SessionActivity extends GvrActivity implements
 		Log.i(TAG, "onSurfaceCreated");
 		GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well.
 
-		float screenWidthHalf = screenWidth / 2.0f;
-		float screenHeightHalf = screenHeight / 2.0f;
-		float[] screenCoords = new float[] {
-				-screenWidthHalf,  screenHeightHalf, 0.0f,
-				-screenWidthHalf, -screenHeightHalf, 0.0f,
-				screenWidthHalf,  screenHeightHalf, 0.0f,
-				-screenWidthHalf, -screenHeightHalf, 0.0f,
-				screenWidthHalf, -screenHeightHalf, 0.0f,
-				screenWidthHalf,  screenHeightHalf, 0.0f,
-		};
-
-		float[] screenTextureCoordinates = new float[] {
-				0.0f, 0.0f,
-				0.0f, 1.0f,
-				1.0f, 0.0f,
-				0.0f, 1.0f,
-				1.0f, 1.0f,
-				1.0f, 0.0f,
-		};
-
-		// make a screen
-		ByteBuffer bbScreenVertices = ByteBuffer.allocateDirect(screenCoords.length * 4);
-		bbScreenVertices.order(ByteOrder.nativeOrder());
-		screenVertices = bbScreenVertices.asFloatBuffer();
-		screenVertices.put(screenCoords);
-		screenVertices.position(0);
-
-		ByteBuffer bbScreenNormals = ByteBuffer.allocateDirect(WorldLayoutData.SCREEN_NORMALS.length * 4);
-		bbScreenNormals.order(ByteOrder.nativeOrder());
-		screenNormals = bbScreenNormals.asFloatBuffer();
-		screenNormals.put(WorldLayoutData.SCREEN_NORMALS);
-		screenNormals.position(0);
-
-		ByteBuffer bbScreenTextureCoords = ByteBuffer.allocateDirect(screenTextureCoordinates.length * 4);
-		bbScreenTextureCoords.order(ByteOrder.nativeOrder());
-		screenTextureCoords = bbScreenTextureCoords.asFloatBuffer();
-		screenTextureCoords.put(screenTextureCoordinates);
-		screenTextureCoords.position(0);
-
 		int vertexShader = loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.screen_vertex);
 		int passthroughShader = loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.screen_fragment);
 
@@ -463,30 +432,129 @@ public class SessionActivity extends GvrActivity implements
 		checkGLError("Screen program");
 
 		screenPositionParam = GLES20.glGetAttribLocation(screenProgram, "a_Position");
-		screenNormalParam = GLES20.glGetAttribLocation(screenProgram, "a_Normal");
 		screenTextureCoordsParam = GLES20.glGetAttribLocation(screenProgram, "a_TexCoordinate");
 		screenTextureParam = GLES20.glGetUniformLocation(screenProgram, "u_Texture");
 
-		screenModelParam = GLES20.glGetUniformLocation(screenProgram, "u_Model");
-		screenModelViewParam = GLES20.glGetUniformLocation(screenProgram, "u_MVMatrix");
 		screenModelViewProjectionParam = GLES20.glGetUniformLocation(screenProgram, "u_MVP");
 
-		GLES20.glEnableVertexAttribArray(screenPositionParam);
-		GLES20.glEnableVertexAttribArray(screenNormalParam);
-		GLES20.glEnableVertexAttribArray(screenTextureCoordsParam);
+		// the sampler always reads texture unit 0, the program keeps that
+		GLES20.glUniform1i(screenTextureParam, 0);
 
 		checkGLError("Screen program params");
 
-		// Screen appears directly in front of user.
-		Matrix.setIdentityM(modelScreen, 0);
-		Matrix.translateM(modelScreen, 0, 0, 0, -screenDistance);
-
 		// Load the texture
 		textureDataHandle = loadTexture(R.drawable.monoscope);
 
+		// A new context means our old desktop textures are gone, rebuild them from the newest frame
+		for (VirtualMonitor monitor : monitors)
+			monitor.forget();
+		uploadedSequence = 0;
+
+		// 1 bends the screens around the viewer, less moves the axis further away
+		float curvature = GlobalSettings.getScreenCurvature();
+		screenRadius = (curvature > 0.0f) ? screenDistance / curvature : 0.0f;
+		screenSegments = GlobalSettings.getScreenSegments();
+
+		String glVersion = GLES20.glGetString(GLES20.GL_VERSION);
+		Log.i(TAG, "GL version: " + glVersion);
+		boolean gles3 = glVersion != null && glVersion.startsWith("OpenGL ES 3");
+		pixelBuffersEnabled = gles3;
+		vertexArraysEnabled = gles3;
+		GLCallCounter.start(vertexArraysEnabled ? "VAO" : "GLES2");
+
+		// Trilinear filtering keeps text from shimmering at screen distance. GLES2 can only
+		// mipmap the NPOT tiles with the extension, and only by regenerating whole tiles.
+		// The downsampling program is shared by all monitors.
+		if (gles3) {
+			mipmapMode = DesktopTexture.MIPMAP_DOWNSAMPLE;
+			mipmapBuilder = new MipmapBuilder(
+					loadGLProgram(R.raw.downsample_vertex, R.raw.downsample_fragment));
+		} else {
+			String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+			mipmapMode = (extensions != null && extensions.contains("GL_OES_texture_npot")) ?
+					DesktopTexture.MIPMAP_GENERATE : DesktopTexture.MIPMAP_NONE;
+			mipmapBuilder = null;
+		}
+
+		buildMonitors(new Rect[] {new Rect()});
+
 		checkGLError("onSurfaceCreated");
 	}
 
+	/**
+	 * Replaces the virtual screens by one per monitor of the layout, side by side around the
+	 * viewer with the primary one, in the middle of the layout, straight ahead. Every screen
+	 * mesh is fitted to the tiles of its texture once that is allocated, until then a single
+	 * part shows the placeholder.
+	 */
+	private void buildMonitors(Rect[] layout) {
+		for (VirtualMonitor monitor : monitors)
+			monitor.release();
+
+		int primary = layout.length / 2;
+		float step = 0.0f;
+		monitors = new VirtualMonitor[layout.length];
+		for (int i = 0; i < layout.length; i++) {
+			VirtualMonitor monitor = new VirtualMonitor(layout[i]);
+			monitor.getTexture().setPixelBuffersEnabled(pixelBuffersEnabled);
+			monitor.getTexture().setMipmaps(mipmapMode, mipmapBuilder);
+
+			ScreenMesh mesh = monitor.getMesh();
+			mesh.setAttributes(screenPositionParam, screenTextureCoordsParam);
+			mesh.setVertexArraysEnabled(vertexArraysEnabled);
+			mesh.setSegments(screenSegments);
+			mesh.setShape(screenWidth, screenHeight, screenRadius);
+			mesh.setTiles(monitor.getTexture());
+			mesh.update();
+
+			if (i == 0)
+				step = getMonitorAngle(mesh) + MONITOR_GAP;
+			// monitors right of the primary one turn to the right
+			monitor.place(-(i - primary) * step, screenDistance);
+			monitors[i] = monitor;
+		}
+		monitorLayout = layout;
+	}
+
+	/**
+	 * @return horizontal angle in degrees a screen covers as seen from the viewer
+	 */
+	private float getMonitorAngle(ScreenMesh mesh) {
+		// a curved screen bends its edges towards the viewer
+		double halfWidth = mesh.getWidth() / 2.0;
+		double depth = 0.0;
+		if (mesh.getRadius() > 0.0f) {
+			double angle = halfWidth / mesh.getRadius();
+			halfWidth = mesh.getRadius() * Math.sin(angle);
+			depth = mesh.getRadius() * (1.0 - Math.cos(angle));
+		}
+		return (float) Math.toDegrees(2.0 * Math.atan2(halfWidth, screenDistance - depth));
+	}
+
+	/**
+	 * @return the monitors of the session if they cover the surface exactly, otherwise, e.g.
+	 * when the server picked another desktop size, the whole surface as a single monitor
+	 */
+	private Rect[] getMonitorLayout(SessionState state, FrameSurface surface) {
+		Rect[] layout = state.getMonitors();
+		if (layout != null && layout.length > 0) {
+			int right = 0;
+			int bottom = 0;
+			for (Rect monitor : layout) {
+				right = Math.max(right, monitor.right);
+				bottom = Math.max(bottom, monitor.bottom);
+			}
+			if (right == surface.getWidth() && bottom == surface.getHeight())
+				return layout;
+		}
+
+		if (monitorLayout != null && monitorLayout.length == 1 && monitorLayout[0].left == 0
+				&& monitorLayout[0].top == 0 && monitorLayout[0].right == surface.getWidth()
+				&& monitorLayout[0].bottom == surface.getHeight())
+			return monitorLayout;
+		return new Rect[] {new Rect(0, 0, surface.getWidth(), surface.getHeight())};
+	}
+
 	/**
 	 * Converts a raw text file into a string.
 	 *
@@ -522,9 +590,82 @@ public class SessionActivity extends GvrActivity implements
 
 		headTransform.getHeadView(headView, 0);
 
+		// what the eyes saw last frame decides which screens get their updates now
+		for (VirtualMonitor monitor : monitors)
+			monitor.nextFrame();
+		uploadDesktop();
+		if (controllerPointer.isConnected())
+			updateControllerPointer();
+		else
+			updateGazeCursor();
+
 		checkGLError("onReadyToDraw");
 	}
 
+	/**
+	 * Uploads the newest complete frame the FreeRDP thread published, if it is newer than
+	 * what the textures hold. Only the regions changed since then are uploaded, and every
+	 * monitor only takes the part of them that falls onto it. Screens no eye saw last frame
+	 * keep their part for later.
+	 */
+	private void uploadDesktop() {
+		SessionState state = session;
+		SurfaceRing ring = (state != null) ? state.getSurfaces() : null;
+		if (ring == null)
+			return;
+
+		if (ring != uploadedRing) {
+			uploadedRing = ring;
+			uploadedSequence = 0;
+			gazeCursor.reset();
+			controllerPointer.reset();
+		}
+
+		FrameSurface surface = ring.acquire(uploadedSequence);
+		if (surface == null)
+			return;
+
+		int count = surface.drainDamage(dirtyRects);
+		boolean full = uploadedSequence == 0;
+		Rect[] layout = getMonitorLayout(state, surface);
+		if (layout != monitorLayout) {
+			buildMonitors(layout);
+			full = true;
+		}
+		for (VirtualMonitor monitor : monitors)
+			monitor.upload(surface, dirtyRects, count, full);
+
+		uploadedSequence = surface.getSequence();
+		ring.release(surface);
+		state.getLatencyTracer().onUploaded(uploadedSequence);
+	}
+
+	/**
+	 * Points the remote cursor where the user looks. Moves go out through the UI handler,
+	 * which only keeps the newest one if the UI thread falls behind.
+	 */
+	private void updateGazeCursor() {
+		long now = SystemClock.uptimeMillis();
+		if (gazeCursor.update(now, headView, CAMERA_Z, monitors) && gazeCursor.poll(now)) {
+			uiHandler.removeMessages(UIHandler.SEND_MOVE_EVENT);
+			uiHandler.sendMessage(Message.obtain(null, UIHandler.SEND_MOVE_EVENT,
+					gazeCursor.getX(), gazeCursor.getY()));
+		}
+	}
+
+	/**
+	 * Points the remote cursor where the controller points and forwards its buttons and
+	 * touchpad, all input of the frame is queued in one batch.
+	 */
+	private void updateControllerPointer() {
+		SessionState state = session;
+		if (state == null)
+			return;
+
+		controllerPointer.update(state.getInstance(), SystemClock.uptimeMillis(), CAMERA_Z,
+				monitors);
+	}
+
 	/**
 	 * Draws a frame for an eye.
 	 *
@@ -532,63 +673,72 @@ public class SessionActivity extends GvrActivity implements
 	 */
 	@Override
 	public void onDrawEye(Eye eye) {
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-
-		checkGLError("onDrawEye");
+		GLCallCounter.glEnable(GLES20.GL_CULL_FACE);
+		GLCallCounter.glEnable(GLES20.GL_DEPTH_TEST);
+		GLCallCounter.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
 		// Apply the eye transformation to the camera.
 		Matrix.multiplyMM(view, 0, eye.getEyeView(), 0, camera, 0);
-
-		// Set the position of the light
-		Matrix.multiplyMV(lightPosInEyeSpace, 0, view, 0, LIGHT_POS_IN_WORLD_SPACE, 0);
-
-		// Build the ModelView and ModelViewProjection matrices
-		// for calculating cube position and light.
 		float[] perspective = eye.getPerspective(Z_NEAR, Z_FAR);
 
-		// Set modelView for the screen, so we draw screen in the correct location
-		Matrix.multiplyMM(modelView, 0, view, 0, modelScreen, 0);
-		Matrix.multiplyMM(modelViewProjection, 0, perspective, 0, modelView, 0);
-		drawScreen();
+		// Screens behind the user or too far to the side are skipped for this eye.
+		frustum.set(perspective, view);
+		drawScreens(frustum);
+		GLCallCounter.endEye();
+
+		// the draw calls of the first eye sampling a traced frame are out
+		SessionState state = session;
+		if (state != null)
+			state.getLatencyTracer().onDrawn();
 	}
 
 	@Override
-	public void onFinishFrame(Viewport viewport) {}
+	public void onFinishFrame(Viewport viewport) {
+		GLCallCounter.endFrame();
+	}
 
 	/**
-	 * Draw the screen.
+	 * Draw the screens.
 	 *
-	 * <p>This feeds in data for the screen into the shader. Note that this doesn't feed in data about
-	 * position of the light, so if we rewrite our code to draw the screen first, the lighting might
-	 * look strange.</p>
+	 * <p>The program and the texture unit are set up once for all screens. Per screen only
+	 * its MVP matrix, its vertex state and the tile textures change, with vertex array
+	 * objects the vertex state is a single call.</p>
+	 *
+	 * @param frustum the frustum of the eye, screens outside of it are not drawn
 	 */
-	public void drawScreen() {
-		GLES20.glUseProgram(screenProgram);
-
-		// Set ModelView, MVP, position, normals, and texture coordinates.
-		GLES20.glUniformMatrix4fv(screenModelParam, 1, false, modelScreen, 0);
-		GLES20.glUniformMatrix4fv(screenModelViewParam, 1, false, modelView, 0);
-		GLES20.glUniformMatrix4fv(screenModelViewProjectionParam, 1, false,
-				modelViewProjection, 0);
-		GLES20.glVertexAttribPointer(screenPositionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
-				false, 0, screenVertices);
-
-		GLES20.glVertexAttribPointer(screenNormalParam, 3, GLES20.GL_FLOAT, false, 0,
-				screenNormals);
-		GLES20.glVertexAttribPointer(screenTextureCoordsParam, 2, GLES20.GL_FLOAT, false, 0, screenTextureCoords);
-
-		// Set the active texture unit to texture unit 0.
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		// Bind the texture to this unit.
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureDataHandle);
-		// Tell the texture uniform sampler to use this texture in the shader by binding to texture unit 0.
-		GLES20.glUniform1i(screenTextureParam, 0);
+	public void drawScreens(ViewFrustum frustum) {
+		GLCallCounter.glUseProgram(screenProgram);
+		GLCallCounter.glActiveTexture(GLES20.GL_TEXTURE0);
+
+		for (VirtualMonitor monitor : monitors) {
+			if (monitor.cull(frustum)) {
+				culledScreens++;
+				continue;
+			}
 
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+			DesktopTexture desktopTexture = monitor.getTexture();
+			ScreenMesh screenMesh = monitor.getMesh();
+			Matrix.multiplyMM(modelViewProjection, 0, frustum.getViewProjection(), 0,
+					monitor.getModel(), 0);
+			GLCallCounter.glUniformMatrix4fv(screenModelViewProjectionParam, 1, false,
+					modelViewProjection, 0);
+			// other passes (e.g. the mipmap update) use their own attribute arrays
+			screenMesh.bind();
+
+			// The geometry may still be the placeholder quad right after a reallocation
+			if (!desktopTexture.isAllocated() || desktopTexture.getTileCount() != screenMesh.getTileCount()) {
+				GLCallCounter.glBindTexture(GLES20.GL_TEXTURE_2D, textureDataHandle);
+				screenMesh.drawTile(0);
+			} else {
+				for (int i = 0; i < screenMesh.getTileCount(); i++) {
+					GLCallCounter.glBindTexture(GLES20.GL_TEXTURE_2D, desktopTexture.getTile(i).getHandle());
+					screenMesh.drawTile(i);
+				}
+			}
+			screenMesh.unbind();
+		}
 
-		checkGLError("drawing screen");
+		checkGLError("drawing screens");
 	}
 
 	/**
@@ -616,13 +766,17 @@ public class SessionActivity extends GvrActivity implements
 
 		initializeGvrView();
 
+		for (int i = 0; i < dirtyRects.length; i++)
+			dirtyRects[i] = new Rect();
+
 		camera = new float[16];
 		view = new float[16];
 		modelViewProjection = new float[16];
-		modelView = new float[16];
-		modelScreen = new float[16];
 		headView = new float[16];
 		vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+		gazeCursor.setFilter(GlobalSettings.getGazeMinCutoff(), GlobalSettings.getGazeBeta());
+		controllerPointer = new ControllerPointer(this, GAZE_MOVE_INTERVAL,
+				GlobalSettings.getGazeMinCutoff(), GlobalSettings.getGazeBeta());
 
 		Log.v(TAG, "Session.onCreate");
 
@@ -663,6 +817,7 @@ public class SessionActivity extends GvrActivity implements
 	protected void onStart() {
 		super.onStart();
 		Log.v(TAG, "Session.onStart");
+		controllerPointer.start();
 	}
 
 	@Override
@@ -687,6 +842,7 @@ public class SessionActivity extends GvrActivity implements
 	protected void onStop() {
 		super.onStop();
 		Log.v(TAG, "Session.onStop");
+		controllerPointer.stop();
 	}
 
 	@Override
@@ -726,7 +882,6 @@ public class SessionActivity extends GvrActivity implements
 		} else if (bundle.containsKey(PARAM_INSTANCE)) {
 			int inst = bundle.getInt(PARAM_INSTANCE);
 			session = GlobalApp.getSession(inst);
-			bitmap = session.getSurface();
 			bindSession();
 		} else if (bundle.containsKey(PARAM_CONNECTION_REFERENCE)) {
 			BookmarkBase bookmark = null;
@@ -774,6 +929,7 @@ public class SessionActivity extends GvrActivity implements
 
 	private void connectWithTitle(String title) {
 		session.setUIEventListener(this);
+		applyFrameInterval();
 
 		Thread thread = new Thread(new Runnable() {
 			public void run() {
@@ -788,6 +944,14 @@ public class SessionActivity extends GvrActivity implements
 	private void bindSession() {
 		Log.v(TAG, "bindSession called");
 		session.setUIEventListener(this);
+		applyFrameInterval();
+	}
+
+	// graphics updates are coalesced to one per display frame, no point in copying more often
+	private void applyFrameInterval() {
+		float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+		if (refreshRate > 0)
+			LibFreeRDP.setFrameInterval(session.getInstance(), (int) (1000 / refreshRate));
 	}
 
 	private void closeSessionActivity(int resultCode) {
@@ -801,13 +965,6 @@ public class SessionActivity extends GvrActivity implements
 	@Override
 	public void OnSettingsChanged(int width, int height, int bpp) {
 
-		if (bpp > 16)
-			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-		else
-			bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
-
-		session.setSurface(bitmap);
-
 		if (session.getBookmark() == null) {
 			// Return immediately if we launch from URI
 			return;
@@ -827,23 +984,8 @@ public class SessionActivity extends GvrActivity implements
 					getResources().getText(R.string.info_capabilities_changed)));
 	}
 
-	@Override
-	public void OnGraphicsUpdate(int x, int y, int width, int height) {
-		LibFreeRDP.updateGraphics(session.getInstance(), bitmap, x, y, width, height);
-
-		// TODO: GVR refresh
-		textureDataHandle = updateTexture(bitmap);
-		//sessionView.addInvalidRegion(new Rect(x, y, x + width, y + height));
-	}
-
 	@Override
 	public void OnGraphicsResize(int width, int height, int bpp) {
-		// replace bitmap
-		if (bpp > 16)
-			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-		else
-			bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
-		session.setSurface(bitmap);
 	}
 
 	@Override
@@ -0,0 +1,74 @@
+/*
+   View frustum for culling
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.opengl.Matrix;
+
+/**
+ * The six clip planes of an eye, extracted from its projection and view matrices, to skip
+ * geometry that cannot end up on screen.
+ *
+ * <p>The planes are taken from the rows of the combined matrix (Gribb and Hartmann) and
+ * normalized, so bounding spheres can be tested with one dot product per plane.</p>
+ */
+public class ViewFrustum {
+	private static final int PLANE_COUNT = 6;
+
+	private final float[] viewProjection = new float[16];
+	// a, b, c, d of each plane, inside is a * x + b * y + c * z + d >= 0
+	private final float[] planes = new float[PLANE_COUNT * 4];
+
+	/**
+	 * @param perspective projection matrix of the eye
+	 * @param view        world to eye matrix
+	 */
+	public void set(float[] perspective, float[] view) {
+		Matrix.multiplyMM(viewProjection, 0, perspective, 0, view, 0);
+
+		// left, right, bottom, top, near, far: the w row plus or minus the x, y and z rows
+		for (int i = 0; i < PLANE_COUNT; i++) {
+			int row = i / 2;
+			float sign = (i % 2 == 0) ? 1.0f : -1.0f;
+			float a = viewProjection[3] + sign * viewProjection[row];
+			float b = viewProjection[7] + sign * viewProjection[4 + row];
+			float c = viewProjection[11] + sign * viewProjection[8 + row];
+			float d = viewProjection[15] + sign * viewProjection[12 + row];
+			float length = (float) Math.sqrt(a * a + b * b + c * c);
+			if (length > 0.0f) {
+				a /= length;
+				b /= length;
+				c /= length;
+				d /= length;
+			}
+			planes[i * 4] = a;
+			planes[i * 4 + 1] = b;
+			planes[i * 4 + 2] = c;
+			planes[i * 4 + 3] = d;
+		}
+	}
+
+	/**
+	 * @return the projection times the view matrix of the last {@link #set(float[], float[])}
+	 */
+	public float[] getViewProjection() {
+		return viewProjection;
+	}
+
+	/**
+	 * @return false if the sphere, in world space, is completely outside of the frustum
+	 */
+	public boolean intersectsSphere(float x, float y, float z, float radius) {
+		for (int i = 0; i < PLANE_COUNT; i++) {
+			float distance = planes[i * 4] * x + planes[i * 4 + 1] * y + planes[i * 4 + 2] * z
+					+ planes[i * 4 + 3];
+			if (distance < -radius)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+   One RDP monitor shown as a virtual screen
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.presentation;
+
+import android.graphics.Rect;
+import android.opengl.Matrix;
+
+import com.freerdp.freerdpcore.application.FrameSurface;
+
+/**
+ * A region of the remote desktop, usually one RDP monitor, with its own texture, screen
+ * mesh and placement in the world.
+ *
+ * <p>The texture only holds the region, damage outside of it is clipped away on upload, so
+ * an update to one monitor never touches the textures of the others. The screen is placed
+ * by turning it around the viewer, all monitors keep the same distance.</p>
+ *
+ * <p>Each eye culls the screen against its view frustum. Damage arriving while the screen
+ * was outside of both eyes last frame is only collected, as one bounding rectangle, and
+ * uploaded once it is seen again. Render thread only.</p>
+ */
+public class VirtualMonitor {
+	private final Rect region;
+	private final DesktopTexture texture = new DesktopTexture();
+	private final ScreenMesh mesh = new ScreenMesh();
+	private final float[] model = new float[16];
+	private final float[] inverseModel = new float[16];
+	private final float[] worldPoint = new float[4];
+	private final float[] modelPoint = new float[4];
+	private final float[] center = new float[4];
+	private final Rect[] wholeRegion = {new Rect()};
+	private final Rect clip = new Rect();
+	private final Rect deferred = new Rect();
+
+	// seen by an eye in the last frame, and so far in the current one
+	private boolean visible = true;
+	private boolean seen = true;
+	private long deferredUploads = 0;
+
+	/**
+	 * @param region part of the desktop shown, in framebuffer coordinates
+	 */
+	public VirtualMonitor(Rect region) {
+		this.region = new Rect(region);
+		place(0.0f, 0.0f);
+	}
+
+	public Rect getRegion() {
+		return region;
+	}
+
+	public DesktopTexture getTexture() {
+		return texture;
+	}
+
+	public ScreenMesh getMesh() {
+		return mesh;
+	}
+
+	public float[] getModel() {
+		return model;
+	}
+
+	/**
+	 * @param yaw      angle around the viewer in degrees, positive turns the screen to the left
+	 * @param distance distance of the screen center from the viewer
+	 */
+	public void place(float yaw, float distance) {
+		Matrix.setRotateM(model, 0, yaw, 0.0f, 1.0f, 0.0f);
+		Matrix.translateM(model, 0, 0.0f, 0.0f, -distance);
+		Matrix.invertM(inverseModel, 0, model, 0);
+	}
+
+	/**
+	 * Closes the visibility of the last frame, call once per frame before
+	 * {@link #upload(FrameSurface, Rect[], int, boolean)} and the eyes are drawn.
+	 */
+	public void nextFrame() {
+		visible = seen;
+		seen = false;
+	}
+
+	/**
+	 * @return true if an eye saw the screen in the last frame
+	 */
+	public boolean isVisible() {
+		return visible;
+	}
+
+	/**
+	 * Tests the bounding sphere of the screen against the frustum of an eye and remembers
+	 * the screen as seen for the current frame if it is inside.
+	 *
+	 * @return true if the screen is completely outside and its draw calls can be skipped
+	 */
+	public boolean cull(ViewFrustum frustum) {
+		center[0] = 0.0f;
+		center[1] = 0.0f;
+		center[2] = mesh.getBoundsCenterZ();
+		center[3] = 1.0f;
+		Matrix.multiplyMV(worldPoint, 0, model, 0, center, 0);
+
+		// the model is a rotation and a translation, the radius stays the same
+		if (!frustum.intersectsSphere(worldPoint[0], worldPoint[1], worldPoint[2],
+				mesh.getBoundsRadius()))
+			return true;
+
+		seen = true;
+		return false;
+	}
+
+	/**
+	 * @return number of frames whose damage was held back because the screen was not seen
+	 */
+	public long getDeferredUploads() {
+		return deferredUploads;
+	}
+
+	/**
+	 * Casts a world space ray from the camera against the screen.
+	 *
+	 * @param eyeZ z coordinate of the camera the ray starts from
+	 * @param out  receives the hit in desktop pixels, needs room for 2 entries
+	 * @return true if the ray hits the screen of an allocated texture
+	 */
+	public boolean intersect(float eyeZ, float dirX, float dirY, float dirZ, float[] out) {
+		if (!texture.isAllocated())
+			return false;
+
+		worldPoint[0] = 0.0f;
+		worldPoint[1] = 0.0f;
+		worldPoint[2] = eyeZ;
+		worldPoint[3] = 1.0f;
+		Matrix.multiplyMV(modelPoint, 0, inverseModel, 0, worldPoint, 0);
+		float originX = modelPoint[0];
+		float originY = modelPoint[1];
+		float originZ = modelPoint[2];
+
+		worldPoint[0] = dirX;
+		worldPoint[1] = dirY;
+		worldPoint[2] = dirZ;
+		worldPoint[3] = 0.0f;
+		Matrix.multiplyMV(modelPoint, 0, inverseModel, 0, worldPoint, 0);
+
+		if (!mesh.intersect(originX, originY, originZ, modelPoint[0], modelPoint[1],
+				modelPoint[2], out))
+			return false;
+
+		out[0] = region.left + out[0] * region.width();
+		out[1] = region.top + out[1] * region.height();
+		return true;
+	}
+
+	/**
+	 * Uploads the part of the damage that falls into the region. A reallocated texture
+	 * gets the whole region and a mesh fitted to its tiles. Damage to a screen that was not
+	 * seen last frame is deferred until it is.
+	 *
+	 * @param full upload the whole region, e.g. for the first frame of a session
+	 */
+	public void upload(FrameSurface surface, Rect[] rects, int count, boolean full) {
+		if (texture.allocate(surface, region)) {
+			mesh.setTiles(texture);
+			mesh.update();
+			full = true;
+		}
+
+		if (full) {
+			deferred.setEmpty();
+			wholeRegion[0].set(region);
+			texture.upload(surface, wholeRegion, 1);
+			return;
+		}
+
+		if (!visible) {
+			// the newest surface always holds everything, only the area has to be kept
+			boolean damaged = false;
+			for (int i = 0; i < count; i++) {
+				if (clip.setIntersect(rects[i], region)) {
+					deferred.union(clip);
+					damaged = true;
+				}
+			}
+			if (damaged)
+				deferredUploads++;
+			return;
+		}
+
+		if (!deferred.isEmpty()) {
+			wholeRegion[0].set(deferred);
+			deferred.setEmpty();
+			texture.upload(surface, wholeRegion, 1);
+		}
+		texture.upload(surface, rects, count);
+	}
+
+	/**
+	 * Frees the GL objects, must be called on the GL thread.
+	 */
+	public void release() {
+		texture.release();
+		mesh.release();
+	}
+
+	/**
+	 * Drops the GL handles without deleting them, for a lost context.
+	 */
+	public void forget() {
+		texture.forget();
+		mesh.forget();
+		deferred.setEmpty();
+	}
+}
@@ -16,30 +16,125 @@ import com.freerdp.freerdpcore.domain.BookmarkBase;
 import com.freerdp.freerdpcore.domain.ManualBookmark;
 
 import android.content.Context;
-import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LibFreeRDP {
     private static final String TAG = "LibFreeRDP";
 
-    static {
-        final String[] libraries = {
-                "openh264", "crypto", "ssl", "jpeg", "winpr",
-                "freerdp", "freerdp-client", "freerdp-android"};
-        final String LD_PATH = System.getProperty("java.library.path");
+    // FreeRDP GLYPH_SUPPORT_NONE
+    private static final int GLYPH_SUPPORT_NONE = 0;
+
+    // native pipeline counters filled by getStats, keep in sync with ANDROID_STAT_*
+    public static final int STAT_UPDATES = 0;
+    public static final int STAT_UPDATE_RECTS = 1;
+    public static final int STAT_COALESCED = 2;
+    public static final int STAT_FLUSHES = 3;
+    public static final int STAT_QUEUE_DEPTH = 4;
+    public static final int STAT_INPUT_EVENTS = 5;
+    public static final int STAT_INPUT_DROPPED = 6;
+    public static final int STAT_BYTES_RECEIVED = 7;
+    // filled on the Java side, the copy into frame surfaces happens in SurfaceRing
+    public static final int STAT_PIXELS_COPIED = 8;
+    public static final int STAT_COUNT = 9;
+
+    // latency probe timestamps filled by takeLatencyProbe, keep in sync with ANDROID_PROBE_*
+    public static final int PROBE_INPUT = 0;
+    public static final int PROBE_DISPATCHED = 1;
+    public static final int PROBE_PAINTED = 2;
+    public static final int PROBE_COUNT = 3;
+
+    // in dependency order, System.loadLibrary does not resolve them for us on old releases
+    private static final String[] LIBRARIES = {
+            "crypto", "ssl", "jpeg", "winpr", "freerdp", "freerdp-client", "freerdp-android"};
+    private static final String H264_LIBRARY = "openh264";
+
+    private static final AtomicBoolean librariesRequested = new AtomicBoolean(false);
+    private static final CountDownLatch librariesLoaded = new CountDownLatch(1);
+    private static boolean h264Loaded = false;
+
+    /**
+     * Starts loading the native libraries on a background thread, call as early as possible.
+     */
+    public static void loadLibrariesAsync() {
+        if (!librariesRequested.compareAndSet(false, true))
+            return;
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadLibraries();
+            }
+        }, "LibFreeRDP-loader");
+        loader.start();
+    }
+
+    /**
+     * Blocks until the native libraries are loaded, loads them on the calling thread if
+     * nobody started that yet.
+     */
+    public static void awaitLibraries() {
+        if (librariesRequested.compareAndSet(false, true))
+            loadLibraries();
 
-        for (String lib : libraries) {
+        boolean interrupted = false;
+        while (true) {
             try {
-                Log.v(TAG, "Trying to load library " + lib + " from LD_PATH: " + LD_PATH);
-                System.loadLibrary(lib);
-            } catch (UnsatisfiedLinkError e) {
-                Log.e(TAG, "Failed to load library " + lib + ": " + e.toString());
+                librariesLoaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Loads the H.264 codec, only needed by sessions that enable it.
+     */
+    public static synchronized boolean loadH264() {
+        if (!h264Loaded)
+            h264Loaded = loadLibrary(H264_LIBRARY);
+        return h264Loaded;
+    }
+
+    private static void loadLibraries() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            // before Android 6 dependencies of a library are not looked up in the app, so
+            // the codec has to be in place before libfreerdp if that links against it
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+                loadH264();
+
+            for (String lib : LIBRARIES)
+                loadLibrary(lib);
+        } finally {
+            Log.i(TAG, "Native libraries loaded in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            librariesLoaded.countDown();
+        }
+    }
+
+    private static boolean loadLibrary(String lib) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            System.loadLibrary(lib);
+            Log.v(TAG, "Loaded library " + lib + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to load library " + lib + ": " + e.toString());
+            return false;
+        }
     }
 
     private static native String freerdp_get_jni_version();
@@ -58,19 +153,39 @@ public class LibFreeRDP {
 
     private static native boolean freerdp_parse_arguments(int inst, String[] args);
 
+    private static native boolean freerdp_set_int_setting(int inst, int key, int value);
+
+    private static native boolean freerdp_set_bool_setting(int inst, int key, boolean value);
+
+    private static native boolean freerdp_set_string_setting(int inst, int key, String value);
+
+    private static native boolean freerdp_apply_settings(int inst, int[] keys, long[] values);
+
+    private static native boolean freerdp_get_settings(int inst, int[] keys, long[] values);
+
+    private static native boolean freerdp_set_monitor_layout(int inst, int[] monitors, int primary);
+
     private static native boolean freerdp_connect(int inst);
 
     private static native boolean freerdp_disconnect(int inst);
 
-    private static native boolean freerdp_update_graphics(int inst,
-                                                          Bitmap bitmap, int x, int y, int width, int height);
+    private static native ByteBuffer freerdp_get_framebuffer(int inst, int[] info);
+
+    private static native boolean freerdp_set_frame_interval(int inst, int interval);
+
+    private static native boolean freerdp_get_stats(int inst, long[] stats);
+
+    private static native boolean freerdp_take_latency_probe(int inst, long[] times);
 
-    private static native boolean freerdp_send_cursor_event(int inst, int x, int y, int flags);
+    private static native boolean freerdp_send_cursor_event(int inst, int x, int y, int flags,
+                                                            long trace);
 
     private static native boolean freerdp_send_key_event(int inst, int keycode, boolean down);
 
     private static native boolean freerdp_send_unicodekey_event(int inst, int keycode);
 
+    private static native int freerdp_send_input_batch(int inst, int[] events, int count);
+
     private static native boolean freerdp_send_clipboard_data(int inst, String data);
 
     public static interface EventListener {
@@ -99,13 +214,329 @@ public class LibFreeRDP {
                 String issuer, String fingerprint, String oldSubject,
                 String oldIssuer, String oldFingerprint);
 
-        void OnGraphicsUpdate(int x, int y, int width, int height);
-
         void OnGraphicsResize(int width, int height, int bpp);
 
         void OnRemoteClipboardChanged(String data);
     }
 
+    /**
+     * Direct view of the native GDI primary buffer, see {@link #getFramebuffer(int)}.
+     *
+     * <p>The memory belongs to the native session and is freed on disconnect. Readers have to
+     * synchronize on the framebuffer and check {@link #isValid()} before touching the buffer.</p>
+     */
+    public static class Framebuffer {
+        public static final int FORMAT_UNKNOWN = 0;
+        public static final int FORMAT_RGBA32 = 1;
+        public static final int FORMAT_RGB16 = 2;
+
+        // layout of the info array filled by freerdp_get_framebuffer
+        private static final int INFO_WIDTH = 0;
+        private static final int INFO_HEIGHT = 1;
+        private static final int INFO_STRIDE = 2;
+        private static final int INFO_FORMAT = 3;
+        private static final int INFO_COUNT = 4;
+
+        private final ByteBuffer buffer;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final int format;
+        private boolean valid = true;
+
+        private Framebuffer(ByteBuffer buffer, int[] info) {
+            this.buffer = buffer;
+            this.width = info[INFO_WIDTH];
+            this.height = info[INFO_HEIGHT];
+            this.stride = info[INFO_STRIDE];
+            this.format = info[INFO_FORMAT];
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getStride() {
+            return stride;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        public int getBytesPerPixel() {
+            return (format == FORMAT_RGB16) ? 2 : 4;
+        }
+
+        public synchronized boolean isValid() {
+            return valid;
+        }
+
+        public synchronized void invalidate() {
+            valid = false;
+        }
+    }
+
+    /**
+     * Typed connection settings, applied without going through the command line parser.
+     *
+     * <p>Keys are indices into a native table that maps them to FreeRDP setting ids, so they
+     * stay stable across FreeRDP versions. A filled instance can be applied again for a
+     * reconnect, and {@link #read(int)} picks up what the session changed.</p>
+     */
+    public static class Settings {
+        // keep in sync with android_settings in android_freerdp.c
+        public static final int SERVER_HOSTNAME = 0;
+        public static final int SERVER_PORT = 1;
+        public static final int USERNAME = 2;
+        public static final int DOMAIN = 3;
+        public static final int PASSWORD = 4;
+        public static final int DESKTOP_WIDTH = 5;
+        public static final int DESKTOP_HEIGHT = 6;
+        public static final int COLOR_DEPTH = 7;
+        public static final int CONSOLE_SESSION = 8;
+        public static final int RDP_SECURITY = 9;
+        public static final int TLS_SECURITY = 10;
+        public static final int NLA_SECURITY = 11;
+        public static final int EXT_SECURITY = 12;
+        public static final int USE_RDP_SECURITY_LAYER = 13;
+        public static final int CERTIFICATE_NAME = 14;
+        public static final int GRAPHICS_PIPELINE = 15;
+        public static final int GFX_H264 = 16;
+        public static final int DISABLE_WALLPAPER = 17;
+        public static final int DISABLE_FULL_WINDOW_DRAG = 18;
+        public static final int DISABLE_MENU_ANIMS = 19;
+        public static final int DISABLE_THEMES = 20;
+        public static final int ALLOW_FONT_SMOOTHING = 21;
+        public static final int ALLOW_DESKTOP_COMPOSITION = 22;
+        public static final int GLYPH_SUPPORT_LEVEL = 23;
+        public static final int SHELL_WORKING_DIRECTORY = 24;
+        public static final int ASYNC_CHANNELS = 25;
+        public static final int ASYNC_TRANSPORT = 26;
+        public static final int ASYNC_INPUT = 27;
+        public static final int ASYNC_UPDATE = 28;
+        public static final int REDIRECT_CLIPBOARD = 29;
+        public static final int SOFTWARE_GDI = 30;
+        public static final int COUNT = 31;
+
+        private final long[] numbers = new long[COUNT];
+        private final boolean[] hasNumber = new boolean[COUNT];
+        private final String[] strings = new String[COUNT];
+
+        public Settings put(int key, int value) {
+            numbers[key] = value;
+            hasNumber[key] = true;
+            return this;
+        }
+
+        public Settings put(int key, boolean value) {
+            return put(key, value ? 1 : 0);
+        }
+
+        public Settings put(int key, String value) {
+            strings[key] = value;
+            return this;
+        }
+
+        public boolean getBoolean(int key) {
+            return numbers[key] != 0;
+        }
+
+        public int getInt(int key) {
+            return (int) numbers[key];
+        }
+
+        public String getString(int key) {
+            return strings[key];
+        }
+
+        /**
+         * Sets everything that was put on the instance, numbers in a single native call.
+         */
+        public boolean apply(int inst) {
+            int[] keys = numberKeys();
+            long[] values = new long[keys.length];
+            for (int i = 0; i < keys.length; i++)
+                values[i] = numbers[keys[i]];
+
+            if (!applySettings(inst, keys, values))
+                return false;
+
+            for (int key = 0; key < COUNT; key++) {
+                if (strings[key] != null && !setStringSetting(inst, key, strings[key]))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Refreshes the number settings that were put on the instance from the session.
+         */
+        public boolean read(int inst) {
+            int[] keys = numberKeys();
+            long[] values = new long[keys.length];
+            if (!getSettings(inst, keys, values))
+                return false;
+
+            for (int i = 0; i < keys.length; i++)
+                numbers[keys[i]] = values[i];
+            return true;
+        }
+
+        private int[] numberKeys() {
+            int count = 0;
+            for (boolean has : hasNumber) {
+                if (has)
+                    count++;
+            }
+
+            int[] keys = new int[count];
+            for (int key = 0, i = 0; key < COUNT; key++) {
+                if (hasNumber[key])
+                    keys[i++] = key;
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Input events collected for {@link #sendInputBatch(int, int[], int)}.
+     *
+     * <p>The packed array is reused between batches, so a batch can be filled and sent over
+     * and over without allocating. Pointer moves only matter until the next one: a move
+     * added right after another replaces it, and moves left over by a short send are
+     * dropped, so a stalled session thread does not pile up a backlog of stale moves.
+     * Buttons and scrolling stay pending, up to {@link #MAX_EVENTS}. Not thread safe.</p>
+     */
+    public static class InputBatch {
+        // upper bound of pending events, more are dropped until the queue takes them again
+        public static final int MAX_EVENTS = 256;
+
+        // event types and layout, match EVENT_TYPE_* and INPUT_BATCH_STRIDE natively
+        private static final int TYPE_KEY = 1;
+        private static final int TYPE_CURSOR = 2;
+        private static final int TYPE_UNICODE_KEY = 4;
+        private static final int STRIDE = 4;
+
+        private int[] events;
+        private boolean[] moves;
+        private int count = 0;
+        private long dropped = 0;
+
+        public InputBatch() {
+            this(32);
+        }
+
+        public InputBatch(int capacity) {
+            capacity = Math.max(1, Math.min(capacity, MAX_EVENTS));
+            events = new int[capacity * STRIDE];
+            moves = new boolean[capacity];
+        }
+
+        /**
+         * Adds a pointer move, replacing a move added just before.
+         */
+        public InputBatch addCursorMove(int x, int y, int flags) {
+            if (count > 0 && moves[count - 1])
+                count--;
+            return add(TYPE_CURSOR, x, y, flags, true);
+        }
+
+        public InputBatch addCursorEvent(int x, int y, int flags) {
+            return add(TYPE_CURSOR, x, y, flags, false);
+        }
+
+        public InputBatch addKeyEvent(int keycode, boolean down) {
+            return add(TYPE_KEY, keycode, down ? 1 : 0, 0, false);
+        }
+
+        public InputBatch addUnicodeKeyEvent(int keycode) {
+            return add(TYPE_UNICODE_KEY, keycode, 0, 0, false);
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        public void clear() {
+            count = 0;
+        }
+
+        /**
+         * @return number of events dropped, stale moves and events beyond {@link #MAX_EVENTS}
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Queues the batch with a single wakeup of the session thread. Events that did not
+         * fit into the native queue stay in the batch and can be sent again later, except
+         * for pointer moves, the next one supersedes them. Invalid events are dropped
+         * natively and never stay.
+         *
+         * @return true if the whole batch was queued
+         */
+        public boolean send(int inst) {
+            if (count == 0)
+                return true;
+
+            int sent = Math.max(0, sendInputBatch(inst, events, count));
+            if (sent >= count) {
+                count = 0;
+                return true;
+            }
+
+            int kept = 0;
+            for (int i = sent; i < count; i++) {
+                if (moves[i]) {
+                    dropped++;
+                    continue;
+                }
+                if (kept != i) {
+                    System.arraycopy(events, i * STRIDE, events, kept * STRIDE, STRIDE);
+                    moves[kept] = false;
+                }
+                kept++;
+            }
+            count = kept;
+            return false;
+        }
+
+        private InputBatch add(int type, int arg0, int arg1, int arg2, boolean move) {
+            if (count == moves.length) {
+                if (count == MAX_EVENTS) {
+                    dropped++;
+                    return this;
+                }
+                int capacity = Math.min(count * 2, MAX_EVENTS);
+                events = Arrays.copyOf(events, capacity * STRIDE);
+                moves = Arrays.copyOf(moves, capacity);
+            }
+
+            int offset = count * STRIDE;
+            events[offset] = type;
+            events[offset + 1] = arg0;
+            events[offset + 2] = arg1;
+            events[offset + 3] = arg2;
+            moves[count] = move;
+            count++;
+            return this;
+        }
+    }
+
     private static EventListener listener;
 
     public static void setEventListener(EventListener l) {
@@ -113,6 +544,7 @@ public class LibFreeRDP {
     }
 
     public static int newInstance(Context context) {
+        awaitLibraries();
         return freerdp_new(context);
     }
 
@@ -132,23 +564,18 @@ public class LibFreeRDP {
         return freerdp_disconnect(inst);
     }
 
-    private static String addFlag(String name, boolean enabled) {
-        if (enabled) {
-            return "+" + name;
-        }
-        return "-" + name;
-    }
-
     public static boolean setConnectionInfo(int inst, BookmarkBase bookmark) {
         BookmarkBase.ScreenSettings screenSettings = bookmark.getActiveScreenSettings();
         BookmarkBase.AdvancedSettings advanced = bookmark.getAdvancedSettings();
         BookmarkBase.DebugSettings debug = bookmark.getDebugSettings();
 
         String arg;
+        Settings settings = new Settings();
+        // only options that expand into several settings or load channels go through the parser
         ArrayList<String> args = new ArrayList<String>();
 
         args.add(TAG);
-        args.add("/gdi:sw");
+        settings.put(Settings.SOFTWARE_GDI, true);
 
         String certName = "";
         if (bookmark.getType() != BookmarkBase.TYPE_MANUAL) {
@@ -158,46 +585,46 @@ public class LibFreeRDP {
         int port = bookmark.<ManualBookmark>get().getPort();
         String hostname = bookmark.<ManualBookmark>get().getHostname();
 
-        args.add("/v:" + hostname);
-        args.add("/port:" + String.valueOf(port));
+        settings.put(Settings.SERVER_HOSTNAME, hostname);
+        settings.put(Settings.SERVER_PORT, port);
 
-        arg = bookmark.getUsername();
-        if (!arg.isEmpty()) {
-            args.add("/u:" + arg);
+        String[] account = splitUsername(bookmark.getUsername(), bookmark.getDomain());
+        if (!account[0].isEmpty()) {
+            settings.put(Settings.USERNAME, account[0]);
         }
-        arg = bookmark.getDomain();
-        if (!arg.isEmpty()) {
-            args.add("/d:" + arg);
+        if (!account[1].isEmpty()) {
+            settings.put(Settings.DOMAIN, account[1]);
         }
         arg = bookmark.getPassword();
         if (!arg.isEmpty()) {
-            args.add("/p:" + arg);
+            settings.put(Settings.PASSWORD, arg);
         }
 
-        args.add(String.format("/size:%dx%d", screenSettings.getWidth(),
-                screenSettings.getHeight()));
-        args.add("/bpp:" + String.valueOf(screenSettings.getColors()));
+        settings.put(Settings.DESKTOP_WIDTH, screenSettings.getWidth());
+        settings.put(Settings.DESKTOP_HEIGHT, screenSettings.getHeight());
+        settings.put(Settings.COLOR_DEPTH, screenSettings.getColors());
 
         if (advanced.getConsoleMode()) {
-            args.add("/admin");
+            settings.put(Settings.CONSOLE_SESSION, true);
         }
 
         switch (advanced.getSecurity()) {
             case 3: // NLA
-                args.add("/sec-nla");
+                setSecurity(settings, false, false, true);
                 break;
             case 2: // TLS
-                args.add("/sec-tls");
+                setSecurity(settings, false, true, false);
                 break;
             case 1: // RDP
-                args.add("/sec-rdp");
+                setSecurity(settings, true, false, false);
+                settings.put(Settings.USE_RDP_SECURITY_LAYER, true);
                 break;
             default:
                 break;
         }
 
         if (!certName.isEmpty()) {
-            args.add("/cert-name:" + certName);
+            settings.put(Settings.CERTIFICATE_NAME, certName);
         }
 
         BookmarkBase.PerformanceFlags flags = bookmark.getActivePerformanceFlags();
@@ -206,40 +633,41 @@ public class LibFreeRDP {
         }
 
         if (flags.getGfx()) {
-            args.add("/gfx");
+            settings.put(Settings.GRAPHICS_PIPELINE, true);
         }
 
-        if (flags.getH264()) {
-            args.add("/gfx-h264");
+        if (flags.getH264() && loadH264()) {
+            settings.put(Settings.GRAPHICS_PIPELINE, true);
+            settings.put(Settings.GFX_H264, true);
         }
 
-        args.add(addFlag("wallpaper", flags.getWallpaper()));
-        args.add(addFlag("window-drag", flags.getFullWindowDrag()));
-        args.add(addFlag("menu-anims", flags.getMenuAnimations()));
-        args.add(addFlag("themes", flags.getTheming()));
-        args.add(addFlag("fonts", flags.getFontSmoothing()));
-        args.add(addFlag("aero", flags.getDesktopComposition()));
-        args.add(addFlag("glyph-cache", false));
+        settings.put(Settings.DISABLE_WALLPAPER, !flags.getWallpaper());
+        settings.put(Settings.DISABLE_FULL_WINDOW_DRAG, !flags.getFullWindowDrag());
+        settings.put(Settings.DISABLE_MENU_ANIMS, !flags.getMenuAnimations());
+        settings.put(Settings.DISABLE_THEMES, !flags.getTheming());
+        settings.put(Settings.ALLOW_FONT_SMOOTHING, flags.getFontSmoothing());
+        settings.put(Settings.ALLOW_DESKTOP_COMPOSITION, flags.getDesktopComposition());
+        settings.put(Settings.GLYPH_SUPPORT_LEVEL, GLYPH_SUPPORT_NONE);
 
         if (!advanced.getRemoteProgram().isEmpty()) {
             args.add("/app:" + advanced.getRemoteProgram());
         }
 
         if (!advanced.getWorkDir().isEmpty()) {
-            args.add("/shell-dir:" + advanced.getWorkDir());
+            settings.put(Settings.SHELL_WORKING_DIRECTORY, advanced.getWorkDir());
         }
 
-        args.add(addFlag("async-channels", debug.getAsyncChannel()));
-        args.add(addFlag("async-transport", debug.getAsyncTransport()));
-        args.add(addFlag("async-input", debug.getAsyncInput()));
-        args.add(addFlag("async-update", debug.getAsyncUpdate()));
+        settings.put(Settings.ASYNC_CHANNELS, debug.getAsyncChannel());
+        settings.put(Settings.ASYNC_TRANSPORT, debug.getAsyncTransport());
+        settings.put(Settings.ASYNC_INPUT, debug.getAsyncInput());
+        settings.put(Settings.ASYNC_UPDATE, debug.getAsyncUpdate());
 
         if (advanced.getRedirectSDCard()) {
             String path = android.os.Environment.getExternalStorageDirectory().getPath();
             args.add("/drive:sdcard," + path);
         }
 
-        args.add("/clipboard");
+        settings.put(Settings.REDIRECT_CLIPBOARD, true);
 
         // Gateway enabled?
         if (bookmark.getType() == BookmarkBase.TYPE_MANUAL && bookmark.<ManualBookmark>get().getEnableGatewaySettings()) {
@@ -247,13 +675,12 @@ public class LibFreeRDP {
 
             args.add(String.format("/g:%s:%d", gateway.getHostname(), gateway.getPort()));
 
-            arg = gateway.getUsername();
-            if (!arg.isEmpty()) {
-                args.add("/gu:" + arg);
+            account = splitUsername(gateway.getUsername(), gateway.getDomain());
+            if (!account[0].isEmpty()) {
+                args.add("/gu:" + account[0]);
             }
-            arg = gateway.getDomain();
-            if (!arg.isEmpty()) {
-                args.add("/gd:" + arg);
+            if (!account[1].isEmpty()) {
+                args.add("/gd:" + account[1]);
             }
             arg = gateway.getPassword();
             if (!arg.isEmpty()) {
@@ -274,9 +701,36 @@ public class LibFreeRDP {
         }
 
         args.add("/log-level:"+debug.getDebugLevel());
+
+        // typed settings first, the parser only touches what is on the command line
+        if (!settings.apply(inst))
+            return false;
+
         String[] arrayArgs = args.toArray(new String[args.size()]);
         return freerdp_parse_arguments(inst, arrayArgs);
     }
+
+    /**
+     * Splits a DOMAIN\name account like freerdp_parse_username does for /u:, a user@domain
+     * name stays whole. An explicitly given domain wins over the one in the name.
+     *
+     * @return the user and the domain, both possibly empty
+     */
+    private static String[] splitUsername(String username, String domain) {
+        int separator = username.indexOf('\\');
+        if (separator < 0)
+            return new String[]{username, domain};
+
+        return new String[]{username.substring(separator + 1),
+                domain.isEmpty() ? username.substring(0, separator) : domain};
+    }
+
+    private static void setSecurity(Settings settings, boolean rdp, boolean tls, boolean nla) {
+        settings.put(Settings.RDP_SECURITY, rdp);
+        settings.put(Settings.TLS_SECURITY, tls);
+        settings.put(Settings.NLA_SECURITY, nla);
+        settings.put(Settings.EXT_SECURITY, false);
+    }
     
     public static boolean setConnectionInfo(int inst, Uri openUri) {
         ArrayList<String> args = new ArrayList<String>();
@@ -303,6 +757,9 @@ public class LibFreeRDP {
         
         for (String key: openUri.getQueryParameterNames()) {
             String value = openUri.getQueryParameter(key);
+
+            if (key.startsWith("gfx-h264"))
+                loadH264();
             
             if (value.isEmpty()) {
                 // Query: key=
@@ -329,12 +786,105 @@ public class LibFreeRDP {
         return freerdp_parse_arguments(inst, arrayArgs);
     }
 
-    public static boolean updateGraphics(int inst, Bitmap bitmap, int x, int y, int width, int height) {
-        return freerdp_update_graphics(inst, bitmap, x, y, width, height);
+    public static boolean setIntSetting(int inst, int key, int value) {
+        return freerdp_set_int_setting(inst, key, value);
+    }
+
+    public static boolean setBoolSetting(int inst, int key, boolean value) {
+        return freerdp_set_bool_setting(inst, key, value);
+    }
+
+    public static boolean setStringSetting(int inst, int key, String value) {
+        return freerdp_set_string_setting(inst, key, value);
+    }
+
+    /**
+     * Sets bool and integer {@link Settings} keys in one call, bools are passed as 0 or 1.
+     */
+    public static boolean applySettings(int inst, int[] keys, long[] values) {
+        return freerdp_apply_settings(inst, keys, values);
+    }
+
+    /**
+     * Reads bool and integer {@link Settings} keys back from the session.
+     */
+    public static boolean getSettings(int inst, int[] keys, long[] values) {
+        return freerdp_get_settings(inst, keys, values);
+    }
+
+    /**
+     * Announces the client monitors, in framebuffer coordinates, before connecting. The
+     * desktop size becomes their bounding box and the primary one is where the server puts
+     * the taskbar.
+     */
+    public static boolean setMonitorLayout(int inst, Rect[] monitors, int primary) {
+        int[] packed = new int[monitors.length * 4];
+        for (int i = 0; i < monitors.length; i++) {
+            packed[i * 4] = monitors[i].left;
+            packed[i * 4 + 1] = monitors[i].top;
+            packed[i * 4 + 2] = monitors[i].width();
+            packed[i * 4 + 3] = monitors[i].height();
+        }
+        return freerdp_set_monitor_layout(inst, packed, primary);
+    }
+
+    /**
+     * Returns a zero-copy view of the session's framebuffer or null if there is none (yet).
+     * The view has to be fetched again after OnSettingsChanged and OnGraphicsResize.
+     */
+    public static Framebuffer getFramebuffer(int inst) {
+        int[] info = new int[Framebuffer.INFO_COUNT];
+        ByteBuffer buffer = freerdp_get_framebuffer(inst, info);
+        if (buffer == null)
+            return null;
+        if (info[Framebuffer.INFO_FORMAT] == Framebuffer.FORMAT_UNKNOWN) {
+            Log.e(TAG, "Unsupported framebuffer format");
+            return null;
+        }
+        return new Framebuffer(buffer, info);
+    }
+
+    /**
+     * Graphics updates are coalesced natively and handed over at most once per interval,
+     * ideally the display refresh period.
+     *
+     * @param interval minimum time between two graphics callbacks in ms, 0 disables coalescing
+     */
+    public static boolean setFrameInterval(int inst, int interval) {
+        return freerdp_set_frame_interval(inst, interval);
+    }
+
+    /**
+     * Snapshot of the pipeline counters, cheap enough to poll every frame.
+     *
+     * @param out receives the counters indexed by the STAT_ constants, needs room for
+     *            {@link #STAT_COUNT} entries
+     */
+    public static boolean getStats(int inst, long[] out) {
+        if (out.length < STAT_COUNT || !freerdp_get_stats(inst, out))
+            return false;
+
+        SessionState s = GlobalApp.getSession(inst);
+        out[STAT_PIXELS_COPIED] = (s != null) ? s.getPixelsCopied() : 0;
+        return true;
+    }
+
+    /**
+     * Takes the latency probe once the native side saw damage answering it.
+     *
+     * @param out receives the System.nanoTime timestamps indexed by the PROBE_ constants,
+     *            needs room for {@link #PROBE_COUNT} entries
+     * @return false if no probe was painted since the last call
+     */
+    public static boolean takeLatencyProbe(int inst, long[] out) {
+        return freerdp_take_latency_probe(inst, out);
     }
 
     public static boolean sendCursorEvent(int inst, int x, int y, int flags) {
-        return freerdp_send_cursor_event(inst, x, y, flags);
+        // some of the events are traced until the screen shows the answer to them
+        SessionState s = GlobalApp.getSession(inst);
+        long trace = (s != null) ? s.getLatencyTracer().begin() : 0;
+        return freerdp_send_cursor_event(inst, x, y, flags, trace);
     }
 
     public static boolean sendKeyEvent(int inst, int keycode, boolean down) {
@@ -345,6 +895,18 @@ public class LibFreeRDP {
         return freerdp_send_unicodekey_event(inst, keycode);
     }
 
+    /**
+     * Queues several input events with one JNI call, see {@link InputBatch}.
+     *
+     * <p>Events of an unknown type are skipped and counted as {@link #STAT_INPUT_DROPPED}.</p>
+     *
+     * @return number of leading events consumed, queued or skipped, less than count only if
+     * the native queue is full
+     */
+    public static int sendInputBatch(int inst, int[] packedEvents, int count) {
+        return freerdp_send_input_batch(inst, packedEvents, count);
+    }
+
     public static boolean sendClipboardData(int inst, String data) {
         return freerdp_send_clipboard_data(inst, data);
     }
@@ -365,6 +927,23 @@ public class LibFreeRDP {
     }
 
     private static void OnDisconnecting(int inst) {
+        long[] stats = new long[STAT_COUNT];
+        if (getStats(inst, stats)) {
+            Log.v(TAG, "Graphics updates: " + stats[STAT_UPDATES] + " (" +
+                    stats[STAT_UPDATE_RECTS] + " rects, " + stats[STAT_COALESCED] +
+                    " coalesced), input events: " + stats[STAT_INPUT_EVENTS] + " (" +
+                    stats[STAT_INPUT_DROPPED] + " dropped), received: " +
+                    stats[STAT_BYTES_RECEIVED] + " bytes, pixels copied: " +
+                    stats[STAT_PIXELS_COPIED]);
+        }
+
+        // called right before the GDI (and with it the framebuffer memory) is freed
+        SessionState s = GlobalApp.getSession(inst);
+        if (s != null) {
+            Log.v(TAG, s.getLatencyTracer().toString());
+            s.setFramebuffer(null);
+        }
+
         if (listener != null)
             listener.OnDisconnecting(inst);
     }
@@ -378,6 +957,7 @@ public class LibFreeRDP {
         SessionState s = GlobalApp.getSession(inst);
         if (s == null)
             return;
+        s.setFramebuffer(getFramebuffer(inst));
         UIEventListener uiEventListener = s.getUIEventListener();
         if (uiEventListener != null)
             uiEventListener.OnSettingsChanged(width, height, bpp);
@@ -430,19 +1010,20 @@ public class LibFreeRDP {
         return 0;
     }
 
-    private static void OnGraphicsUpdate(int inst, int x, int y, int width, int height) {
+    // rects holds (x, y, width, height) tuples of every region invalidated by one paint, the
+    // renderer picks the frame up from the session's frame surfaces
+    private static void OnGraphicsUpdateRegions(int inst, int[] rects) {
         SessionState s = GlobalApp.getSession(inst);
         if (s == null)
             return;
-        UIEventListener uiEventListener = s.getUIEventListener();
-        if (uiEventListener != null)
-            uiEventListener.OnGraphicsUpdate(x, y, width, height);
+        s.publishFrame(rects, rects.length / 4);
     }
 
     private static void OnGraphicsResize(int inst, int width, int height, int bpp) {
         SessionState s = GlobalApp.getSession(inst);
         if (s == null)
             return;
+        s.setFramebuffer(getFramebuffer(inst));
         UIEventListener uiEventListener = s.getUIEventListener();
         if (uiEventListener != null)
             uiEventListener.OnGraphicsResize(width, height, bpp);
@@ -458,6 +1039,7 @@ public class LibFreeRDP {
     }
 
     public static String getVersion() {
+        awaitLibraries();
         return freerdp_get_version();
     }
 }
@@ -9,12 +9,42 @@
 
 package com.freerdp.freerdpcore.utils;
 
+import com.freerdp.freerdpcore.application.GlobalSettings;
+
 public class Mouse {
 
+	private final static int PTRFLAGS_LBUTTON = 0x1000;
+	private final static int PTRFLAGS_RBUTTON = 0x2000;
+	private final static int PTRFLAGS_DOWN = 0x8000;
 	private final static int PTRFLAGS_MOVE = 0x0800;
+	private final static int PTRFLAGS_WHEEL = 0x0200;
+	private final static int PTRFLAGS_WHEEL_NEGATIVE = 0x0100;
+
+	// one wheel notch (WHEEL_DELTA is 120), negative rotations are two's complement
+	private final static int WHEEL_ROTATION_UP = 0x0078;
+	private final static int WHEEL_ROTATION_DOWN = 0x0088;
+
+	public static int getLeftButtonEvent(boolean down) {
+		int flags = GlobalSettings.getSwapMouseButtons() ? PTRFLAGS_RBUTTON : PTRFLAGS_LBUTTON;
+		return down ? (flags | PTRFLAGS_DOWN) : flags;
+	}
+
+	public static int getRightButtonEvent(boolean down) {
+		int flags = GlobalSettings.getSwapMouseButtons() ? PTRFLAGS_LBUTTON : PTRFLAGS_RBUTTON;
+		return down ? (flags | PTRFLAGS_DOWN) : flags;
+	}
 
 	public static int getMoveEvent() {
 		return PTRFLAGS_MOVE;
 	}
+
+	public static int getScrollEvent(boolean down) {
+		if (GlobalSettings.getInvertScrolling())
+			down = !down;
+
+		if (down)
+			return PTRFLAGS_WHEEL | PTRFLAGS_WHEEL_NEGATIVE | WHEEL_ROTATION_DOWN;
+		return PTRFLAGS_WHEEL | WHEEL_ROTATION_UP;
+	}
 	
 }
@@ -0,0 +1,76 @@
+/*
+   Adaptive low pass filter for noisy input
+
+   This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+   If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+
+package com.freerdp.freerdpcore.utils;
+
+/**
+ * 1 Euro filter (Casiez, Roussel and Vogel, CHI 2012).
+ *
+ * <p>A first order low pass whose cutoff frequency rises with the speed of the signal:
+ * slow movements are smoothed heavily, which removes jitter, fast ones pass with little
+ * lag. minCutoff sets the smoothing at rest, beta how quickly it is relaxed.</p>
+ */
+public class OneEuroFilter {
+	private static final float DERIVATE_CUTOFF = 1.0f;
+
+	private float minCutoff;
+	private float beta;
+
+	private boolean initialized = false;
+	private float value;
+	private float derivate;
+	private long lastTime;
+
+	/**
+	 * @param minCutoff cutoff frequency at rest in Hz
+	 * @param beta      cutoff increase per unit of speed (units per second)
+	 */
+	public OneEuroFilter(float minCutoff, float beta) {
+		setParameters(minCutoff, beta);
+	}
+
+	public void setParameters(float minCutoff, float beta) {
+		this.minCutoff = Math.max(minCutoff, 0.0001f);
+		this.beta = Math.max(beta, 0.0f);
+	}
+
+	/**
+	 * @param time sample time in ms
+	 * @return the filtered value
+	 */
+	public float filter(float sample, long time) {
+		if (!initialized || time <= lastTime) {
+			if (!initialized) {
+				value = sample;
+				derivate = 0.0f;
+				initialized = true;
+			}
+			lastTime = time;
+			return value;
+		}
+
+		float dt = (time - lastTime) / 1000.0f;
+		lastTime = time;
+
+		derivate += alpha(DERIVATE_CUTOFF, dt) * ((sample - value) / dt - derivate);
+		float cutoff = minCutoff + beta * Math.abs(derivate);
+		value += alpha(cutoff, dt) * (sample - value);
+		return value;
+	}
+
+	/**
+	 * Starts over, the next sample passes unfiltered.
+	 */
+	public void reset() {
+		initialized = false;
+	}
+
+	private static float alpha(float cutoff, float dt) {
+		float tau = 1.0f / (2.0f * (float) Math.PI * cutoff);
+		return 1.0f / (1.0f + tau / dt);
+	}
+}
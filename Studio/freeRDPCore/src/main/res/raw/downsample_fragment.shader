@@ -0,0 +1,12 @@
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+varying vec2 v_TexCoordinate;
+
+void main()
+{
+    // Sampling the center of each 2x2 block of the level above with linear filtering
+    // averages all four texels
+    gl_FragColor = texture2D(u_Texture, v_TexCoordinate);
+}
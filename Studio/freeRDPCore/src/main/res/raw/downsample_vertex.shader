@@ -0,0 +1,10 @@
+attribute vec2 a_Position;
+attribute vec2 a_TexCoordinate;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+   v_TexCoordinate = a_TexCoordinate;
+
+   gl_Position = vec4(a_Position, 0.0, 1.0);
+}
@@ -431,17 +431,12 @@ static UINT android_cliprdr_server_format_data_response(
 	{
 		JNIEnv* env;
 		jstring jdata;
-		jboolean attached;
 		formatId = ClipboardRegisterFormat(afc->clipboard, "UTF8_STRING");
 		data = (void*) ClipboardGetData(afc->clipboard, formatId, &size);
-		attached = jni_attach_thread(&env);
+		jni_attach_thread(&env);
 		jdata = jniNewStringUTF(env, data, size);
-		freerdp_callback("OnRemoteClipboardChanged", "(ILjava/lang/String;)V", instance,
-		                 jdata);
+		freerdp_callback(CALLBACK_ON_REMOTE_CLIPBOARD_CHANGED, instance, jdata);
 		(*env)->DeleteLocalRef(env, jdata);
-
-		if (attached == JNI_TRUE)
-			jni_detach_thread();
 	}
 
 	return CHANNEL_RC_OK;
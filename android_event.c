@@ -28,108 +28,191 @@
 #include "android_freerdp.h"
 #include "android_cliprdr.h"
 
-BOOL android_push_event(freerdp* inst, ANDROID_EVENT* event)
+/* Slot sequence numbers follow Dmitry Vyukov's bounded queue: a slot is free
+ * for position pos when its sequence is pos, and holds the event of position
+ * pos when its sequence is pos + 1. */
+static BOOL android_enqueue_event(ANDROID_EVENT_QUEUE* queue, const ANDROID_EVENT* event,
+                                  BOOL* wake)
 {
-	androidContext* aCtx = (androidContext*)inst->context;
+	ANDROID_EVENT_SLOT* slot;
+	UINT32 pos = __atomic_load_n(&queue->tail, __ATOMIC_RELAXED);
 
-	if (aCtx->event_queue->count >= aCtx->event_queue->size)
+	for (;;)
 	{
-		int new_size;
-		void* new_events;
-		new_size = aCtx->event_queue->size * 2;
-		new_events = realloc((void*) aCtx->event_queue->events,
-		                     sizeof(ANDROID_EVENT*) * new_size);
+		INT32 diff;
+		slot = &queue->slots[pos & (ANDROID_EVENT_QUEUE_SIZE - 1)];
+		diff = (INT32)(__atomic_load_n(&slot->sequence, __ATOMIC_ACQUIRE) - pos);
 
-		if (!new_events)
+		if (diff == 0)
+		{
+			if (__atomic_compare_exchange_n(&queue->tail, &pos, pos + 1, TRUE,
+			                                __ATOMIC_RELAXED, __ATOMIC_RELAXED))
+				break;
+		}
+		else if (diff < 0)
+		{
+			WLog_WARN(TAG, "android_push_event: queue full, dropping event %d", event->type);
 			return FALSE;
+		}
+		else
+			pos = __atomic_load_n(&queue->tail, __ATOMIC_RELAXED);
+	}
+
+	slot->event = *event;
+	__atomic_store_n(&slot->sequence, pos + 1, __ATOMIC_SEQ_CST);
+
+	/* Only wake the consumer if it has caught up with this event. Publishing
+	 * and reading head are sequentially consistent, as are advancing head and
+	 * reading the next slot in android_peek_event, so either the consumer still
+	 * sees this event or we see it waiting here. */
+	if (__atomic_load_n(&queue->head, __ATOMIC_SEQ_CST) == pos)
+		*wake = TRUE;
+
+	return TRUE;
+}
+
+BOOL android_push_event(freerdp* inst, const ANDROID_EVENT* event)
+{
+	androidContext* aCtx = (androidContext*)inst->context;
+	BOOL wake = FALSE;
 
-		aCtx->event_queue->events = new_events;
-		aCtx->event_queue->size = new_size;
+	if (!android_enqueue_event(aCtx->event_queue, event, &wake))
+	{
+		android_stats_add(aCtx, ANDROID_STAT_INPUT_DROPPED, 1);
+		return FALSE;
 	}
 
-	aCtx->event_queue->events[(aCtx->event_queue->count)++] = event;
+	if (!wake)
+		return TRUE;
+
 	return SetEvent(aCtx->event_queue->isSet);
 }
 
-static ANDROID_EVENT* android_peek_event(ANDROID_EVENT_QUEUE* queue)
+/* Queues events in order until the queue is full, the consumer is woken once
+ * at the end. Returns the number of events queued. */
+int android_push_events(freerdp* inst, const ANDROID_EVENT* events, int count)
 {
-	ANDROID_EVENT* event;
+	int i;
+	androidContext* aCtx = (androidContext*)inst->context;
+	BOOL wake = FALSE;
 
-	if (queue->count < 1)
-		return NULL;
+	for (i = 0; i < count; i++)
+	{
+		if (!android_enqueue_event(aCtx->event_queue, &events[i], &wake))
+		{
+			android_stats_add(aCtx, ANDROID_STAT_INPUT_DROPPED, count - i);
+			break;
+		}
+	}
+
+	if (wake)
+		SetEvent(aCtx->event_queue->isSet);
 
-	event = queue->events[0];
-	return event;
+	return i;
 }
 
-static ANDROID_EVENT* android_pop_event(ANDROID_EVENT_QUEUE* queue)
+static const ANDROID_EVENT* android_peek_event(ANDROID_EVENT_QUEUE* queue)
 {
-	int i;
-	ANDROID_EVENT* event;
+	UINT32 pos = queue->head;
+	ANDROID_EVENT_SLOT* slot = &queue->slots[pos & (ANDROID_EVENT_QUEUE_SIZE - 1)];
 
-	if (queue->count < 1)
+	if (__atomic_load_n(&slot->sequence, __ATOMIC_SEQ_CST) != pos + 1)
 		return NULL;
 
-	event = queue->events[0];
-	(queue->count)--;
+	return &slot->event;
+}
 
-	for (i = 0; i < queue->count; i++)
-	{
-		queue->events[i] = queue->events[i + 1];
-	}
+static BOOL android_pop_event(ANDROID_EVENT_QUEUE* queue, ANDROID_EVENT* event)
+{
+	UINT32 pos = queue->head;
+	ANDROID_EVENT_SLOT* slot;
+
+	if (!android_peek_event(queue))
+		return FALSE;
 
-	return event;
+	slot = &queue->slots[pos & (ANDROID_EVENT_QUEUE_SIZE - 1)];
+	*event = slot->event;
+	__atomic_store_n(&slot->sequence, pos + ANDROID_EVENT_QUEUE_SIZE, __ATOMIC_RELEASE);
+	__atomic_store_n(&queue->head, pos + 1, __ATOMIC_SEQ_CST);
+	return TRUE;
+}
+
+/* Events pushed but not processed yet, may be off by the ones in flight */
+UINT32 android_event_queue_depth(ANDROID_EVENT_QUEUE* queue)
+{
+	UINT32 tail = __atomic_load_n(&queue->tail, __ATOMIC_RELAXED);
+	UINT32 head = __atomic_load_n(&queue->head, __ATOMIC_RELAXED);
+	INT32 depth = (INT32)(tail - head);
+	return (depth > 0) ? depth : 0;
+}
+
+/* Plain pointer moves, button and wheel events carry other flags */
+static BOOL android_event_is_move(const ANDROID_EVENT* event)
+{
+	return (event->type == EVENT_TYPE_CURSOR) && (event->cursor.flags == PTR_FLAGS_MOVE);
 }
 
 static BOOL android_process_event(ANDROID_EVENT_QUEUE* queue, freerdp* inst)
 {
-	ANDROID_EVENT* event;
+	ANDROID_EVENT event;
+	const ANDROID_EVENT* next;
 	rdpContext* context = inst->context;
 	androidContext* afc  = (androidContext*) context;
 
-	while (android_peek_event(queue))
+	while (android_pop_event(queue, &event))
 	{
-		event = android_pop_event(queue);
+		android_stats_add(afc, ANDROID_STAT_INPUT_EVENTS, 1);
 
-		if (event->type == EVENT_TYPE_KEY)
+		if (event.type == EVENT_TYPE_KEY)
 		{
-			ANDROID_EVENT_KEY* key_event = (ANDROID_EVENT_KEY*) event;
-			inst->input->KeyboardEvent(inst->input, key_event->flags, key_event->scancode);
-			android_event_free((ANDROID_EVENT*)key_event);
+			inst->input->KeyboardEvent(inst->input, event.key.flags, event.key.scancode);
 		}
-		else if (event->type == EVENT_TYPE_KEY_UNICODE)
+		else if (event.type == EVENT_TYPE_KEY_UNICODE)
 		{
-			ANDROID_EVENT_KEY* key_event = (ANDROID_EVENT_KEY*) event;
-			inst->input->UnicodeKeyboardEvent(inst->input, key_event->flags,
-			                                  key_event->scancode);
-			android_event_free((ANDROID_EVENT*)key_event);
+			inst->input->UnicodeKeyboardEvent(inst->input, event.key.flags,
+			                                  event.key.scancode);
 		}
-		else if (event->type == EVENT_TYPE_CURSOR)
+		else if (event.type == EVENT_TYPE_CURSOR)
 		{
-			ANDROID_EVENT_CURSOR* cursor_event = (ANDROID_EVENT_CURSOR*) event;
-			inst->input->MouseEvent(inst->input, cursor_event->flags, cursor_event->x,
-			                        cursor_event->y);
-			android_event_free((ANDROID_EVENT*)cursor_event);
+			UINT64 trace = event.cursor.trace;
+
+			/* Only the newest of consecutive moves matters to the server, a
+			 * trace tag moves on to it */
+			if (android_event_is_move(&event))
+			{
+				while ((next = android_peek_event(queue)) && android_event_is_move(next))
+				{
+					android_pop_event(queue, &event);
+					android_stats_add(afc, ANDROID_STAT_INPUT_EVENTS, 1);
+
+					if (!trace)
+						trace = event.cursor.trace;
+				}
+			}
+
+			inst->input->MouseEvent(inst->input, event.cursor.flags, event.cursor.x,
+			                        event.cursor.y);
+
+			if (trace)
+				android_probe_dispatch(afc, event.cursor.x, event.cursor.y, trace);
 		}
-		else if (event->type == EVENT_TYPE_CLIPBOARD)
+		else if (event.type == EVENT_TYPE_CLIPBOARD)
 		{
 			UINT32 size;
 			UINT32 formatId;
-			ANDROID_EVENT_CLIPBOARD* clipboard_event = (ANDROID_EVENT_CLIPBOARD*) event;
 			formatId = ClipboardRegisterFormat(afc->clipboard, "UTF8_STRING");
-			size = clipboard_event->data_length;
+			size = event.clipboard.data_length;
 
 			if (size)
-				ClipboardSetData(afc->clipboard, formatId, clipboard_event->data, size);
+				ClipboardSetData(afc->clipboard, formatId, event.clipboard.data, size);
 			else
 				ClipboardEmpty(afc->clipboard);
 
 			android_cliprdr_send_client_format_list(afc->cliprdr);
-			android_event_free((ANDROID_EVENT*)clipboard_event);
+			android_event_free(&event);
 		}
-		else if (event->type == EVENT_TYPE_DISCONNECT)
+		else if (event.type == EVENT_TYPE_DISCONNECT)
 		{
-			android_event_free(event);
 			return FALSE;
 		}
 	}
@@ -176,119 +259,59 @@ BOOL android_check_handle(freerdp* inst)
 	return TRUE;
 }
 
-ANDROID_EVENT_KEY* android_event_key_new(int flags, UINT16 scancode)
-{
-	ANDROID_EVENT_KEY* event;
-	event = (ANDROID_EVENT_KEY*) calloc(1, sizeof(ANDROID_EVENT_KEY));
-
-	if (!event)
-		return NULL;
-
-	event->type = EVENT_TYPE_KEY;
-	event->flags = flags;
-	event->scancode = scancode;
-	return event;
-}
-
-static void android_event_key_free(ANDROID_EVENT_KEY* event)
-{
-	free(event);
-}
-
-ANDROID_EVENT_KEY* android_event_unicodekey_new(UINT16 key)
-{
-	ANDROID_EVENT_KEY* event;
-	event = (ANDROID_EVENT_KEY*) calloc(1, sizeof(ANDROID_EVENT_KEY));
-
-	if (!event)
-		return NULL;
-
-	event->type = EVENT_TYPE_KEY_UNICODE;
-	event->scancode = key;
-	return event;
-}
-
-static void android_event_unicodekey_free(ANDROID_EVENT_KEY* event)
+void android_event_key_init(ANDROID_EVENT* event, int flags, UINT16 scancode)
 {
-	free(event);
+	ZeroMemory(event, sizeof(ANDROID_EVENT));
+	event->key.type = EVENT_TYPE_KEY;
+	event->key.flags = flags;
+	event->key.scancode = scancode;
 }
 
-ANDROID_EVENT_CURSOR* android_event_cursor_new(UINT16 flags, UINT16 x, UINT16 y)
+void android_event_unicodekey_init(ANDROID_EVENT* event, UINT16 key)
 {
-	ANDROID_EVENT_CURSOR* event;
-	event = (ANDROID_EVENT_CURSOR*) calloc(1, sizeof(ANDROID_EVENT_CURSOR));
-
-	if (!event)
-		return NULL;
-
-	event->type = EVENT_TYPE_CURSOR;
-	event->x = x;
-	event->y = y;
-	event->flags = flags;
-	return event;
+	ZeroMemory(event, sizeof(ANDROID_EVENT));
+	event->key.type = EVENT_TYPE_KEY_UNICODE;
+	event->key.scancode = key;
 }
 
-static void android_event_cursor_free(ANDROID_EVENT_CURSOR* event)
+void android_event_cursor_init(ANDROID_EVENT* event, UINT16 flags, UINT16 x, UINT16 y)
 {
-	free(event);
+	ZeroMemory(event, sizeof(ANDROID_EVENT));
+	event->cursor.type = EVENT_TYPE_CURSOR;
+	event->cursor.x = x;
+	event->cursor.y = y;
+	event->cursor.flags = flags;
 }
 
-ANDROID_EVENT* android_event_disconnect_new()
+void android_event_disconnect_init(ANDROID_EVENT* event)
 {
-	ANDROID_EVENT* event;
-	event = (ANDROID_EVENT*) calloc(1, sizeof(ANDROID_EVENT));
-
-	if (!event)
-		return NULL;
-
+	ZeroMemory(event, sizeof(ANDROID_EVENT));
 	event->type = EVENT_TYPE_DISCONNECT;
-	return event;
-}
-
-static void android_event_disconnect_free(ANDROID_EVENT* event)
-{
-	free(event);
 }
 
-ANDROID_EVENT_CLIPBOARD* android_event_clipboard_new(void* data,
-        int data_length)
+BOOL android_event_clipboard_init(ANDROID_EVENT* event, void* data,
+                                  int data_length)
 {
-	ANDROID_EVENT_CLIPBOARD* event;
-	event = (ANDROID_EVENT_CLIPBOARD*) calloc(1, sizeof(ANDROID_EVENT_CLIPBOARD));
-
-	if (!event)
-		return NULL;
-
-	event->type = EVENT_TYPE_CLIPBOARD;
+	ZeroMemory(event, sizeof(ANDROID_EVENT));
+	event->clipboard.type = EVENT_TYPE_CLIPBOARD;
 
 	if (data)
 	{
-		event->data = malloc(data_length);
+		event->clipboard.data = malloc(data_length);
 
-		if (!event->data)
-		{
-			free(event);
-			return NULL;
-		}
+		if (!event->clipboard.data)
+			return FALSE;
 
-		memcpy(event->data, data, data_length);
-		event->data_length = data_length;
+		memcpy(event->clipboard.data, data, data_length);
+		event->clipboard.data_length = data_length;
 	}
 
-	return event;
-}
-
-static void android_event_clipboard_free(ANDROID_EVENT_CLIPBOARD* event)
-{
-	if (event)
-	{
-		free(event->data);
-		free(event);
-	}
+	return TRUE;
 }
 
 BOOL android_event_queue_init(freerdp* inst)
 {
+	UINT32 i;
 	androidContext* aCtx = (androidContext*)inst->context;
 	ANDROID_EVENT_QUEUE* queue;
 	queue = (ANDROID_EVENT_QUEUE*) calloc(1, sizeof(ANDROID_EVENT_QUEUE));
@@ -299,8 +322,9 @@ BOOL android_event_queue_init(freerdp* inst)
 		return FALSE;
 	}
 
-	queue->size = 16;
-	queue->count = 0;
+	for (i = 0; i < ANDROID_EVENT_QUEUE_SIZE; i++)
+		queue->slots[i].sequence = i;
+
 	queue->isSet = CreateEventA(NULL, TRUE, FALSE, NULL);
 
 	if (!queue->isSet)
@@ -309,16 +333,6 @@ BOOL android_event_queue_init(freerdp* inst)
 		return FALSE;
 	}
 
-	queue->events = (ANDROID_EVENT**) calloc(sizeof(ANDROID_EVENT*), queue->size);
-
-	if (!queue->events)
-	{
-		WLog_ERR(TAG, "android_event_queue_init: memory allocation failed");
-		CloseHandle(queue->isSet);
-		free(queue);
-		return FALSE;
-	}
-
 	aCtx->event_queue = queue;
 	return TRUE;
 }
@@ -327,6 +341,7 @@ void android_event_queue_uninit(freerdp* inst)
 {
 	androidContext* aCtx;
 	ANDROID_EVENT_QUEUE* queue;
+	ANDROID_EVENT event;
 
 	if (!inst || !inst->context)
 		return;
@@ -342,46 +357,24 @@ void android_event_queue_uninit(freerdp* inst)
 			queue->isSet = NULL;
 		}
 
-		if (queue->events)
-		{
-			free(queue->events);
-			queue->events = NULL;
-			queue->size = 0;
-			queue->count = 0;
-		}
+		while (android_pop_event(queue, &event))
+			android_event_free(&event);
 
 		free(queue);
+		aCtx->event_queue = NULL;
 	}
 }
 
+/* Releases what an event owns, not the event itself */
 void android_event_free(ANDROID_EVENT* event)
 {
 	if (!event)
 		return;
 
-	switch (event->type)
+	if (event->type == EVENT_TYPE_CLIPBOARD)
 	{
-		case EVENT_TYPE_KEY:
-			android_event_key_free((ANDROID_EVENT_KEY*)event);
-			break;
-
-		case EVENT_TYPE_KEY_UNICODE:
-			android_event_unicodekey_free((ANDROID_EVENT_KEY*)event);
-			break;
-
-		case EVENT_TYPE_CURSOR:
-			android_event_cursor_free((ANDROID_EVENT_CURSOR*)event);
-			break;
-
-		case EVENT_TYPE_DISCONNECT:
-			android_event_disconnect_free((ANDROID_EVENT*)event);
-			break;
-
-		case EVENT_TYPE_CLIPBOARD:
-			android_event_clipboard_free((ANDROID_EVENT_CLIPBOARD*)event);
-			break;
-
-		default:
-			break;
+		free(event->clipboard.data);
+		event->clipboard.data = NULL;
+		event->clipboard.data_length = 0;
 	}
 }
@@ -19,12 +19,6 @@
 #define EVENT_TYPE_KEY_UNICODE		4
 #define EVENT_TYPE_CLIPBOARD	5
 
-struct _ANDROID_EVENT
-{
-	int type;
-};
-typedef struct _ANDROID_EVENT ANDROID_EVENT;
-
 struct _ANDROID_EVENT_KEY
 {
 	int type;
@@ -39,6 +33,7 @@ struct _ANDROID_EVENT_CURSOR
 	UINT16 flags;
 	UINT16 x;
 	UINT16 y;
+	UINT64 trace;	/* System.nanoTime of a traced event, 0 if untraced */
 };
 typedef struct _ANDROID_EVENT_CURSOR ANDROID_EVENT_CURSOR;
 
@@ -50,25 +45,54 @@ struct _ANDROID_EVENT_CLIPBOARD
 };
 typedef struct _ANDROID_EVENT_CLIPBOARD ANDROID_EVENT_CLIPBOARD;
 
+/* Events are passed by value and copied into the queue slots, only clipboard
+ * events own memory (see android_event_free). */
+union _ANDROID_EVENT
+{
+	int type;
+	ANDROID_EVENT_KEY key;
+	ANDROID_EVENT_CURSOR cursor;
+	ANDROID_EVENT_CLIPBOARD clipboard;
+};
+typedef union _ANDROID_EVENT ANDROID_EVENT;
+
+/* Capacity of the event queue, has to be a power of two. Pushing onto a full
+ * queue fails and the event is left to the caller. */
+#define ANDROID_EVENT_QUEUE_SIZE	256
+#define ANDROID_CACHE_LINE_SIZE		64
+
+struct _ANDROID_EVENT_SLOT
+{
+	UINT32 sequence;
+	ANDROID_EVENT event;
+};
+typedef struct _ANDROID_EVENT_SLOT ANDROID_EVENT_SLOT;
+
+/* Bounded ring written by any number of Java threads and read by the session
+ * (or input) thread only. Producers and the consumer each own a cache line. */
 struct _ANDROID_EVENT_QUEUE
 {
-	int size;
-	int count;
+	UINT32 tail;
+	BYTE tailPad[ANDROID_CACHE_LINE_SIZE - sizeof(UINT32)];
+	UINT32 head;
+	BYTE headPad[ANDROID_CACHE_LINE_SIZE - sizeof(UINT32)];
 	HANDLE isSet;
-	ANDROID_EVENT **events;
+	ANDROID_EVENT_SLOT slots[ANDROID_EVENT_QUEUE_SIZE];
 };
 typedef struct _ANDROID_EVENT_QUEUE ANDROID_EVENT_QUEUE;
 
-BOOL android_push_event(freerdp * inst, ANDROID_EVENT* event);
+BOOL android_push_event(freerdp * inst, const ANDROID_EVENT* event);
+int android_push_events(freerdp * inst, const ANDROID_EVENT* events, int count);
+UINT32 android_event_queue_depth(ANDROID_EVENT_QUEUE* queue);
 
 HANDLE android_get_handle(freerdp* inst);
 BOOL android_check_handle(freerdp * inst);
 
-ANDROID_EVENT_KEY* android_event_key_new(int flags, UINT16 scancode);
-ANDROID_EVENT_KEY* android_event_unicodekey_new(UINT16 key);
-ANDROID_EVENT_CURSOR* android_event_cursor_new(UINT16 flags, UINT16 x, UINT16 y);
-ANDROID_EVENT* android_event_disconnect_new(void);
-ANDROID_EVENT_CLIPBOARD* android_event_clipboard_new(void* data, int data_length);
+void android_event_key_init(ANDROID_EVENT* event, int flags, UINT16 scancode);
+void android_event_unicodekey_init(ANDROID_EVENT* event, UINT16 key);
+void android_event_cursor_init(ANDROID_EVENT* event, UINT16 flags, UINT16 x, UINT16 y);
+void android_event_disconnect_init(ANDROID_EVENT* event);
+BOOL android_event_clipboard_init(ANDROID_EVENT* event, void* data, int data_length);
 
 void android_event_free(ANDROID_EVENT* event);
 
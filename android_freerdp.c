@@ -23,6 +23,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <errno.h>
+#include <time.h>
 
 #include <freerdp/graphics.h>
 #include <freerdp/codec/rfx.h>
@@ -41,7 +42,7 @@
 #include <freerdp/settings.h>
 #include <freerdp/utils/signal.h>
 
-#include <android/bitmap.h>
+#include <winpr/sysinfo.h>
 
 #include "android_jni_callback.h"
 #include "android_jni_utils.h"
@@ -128,14 +129,23 @@ static void android_OnChannelDisconnectedEventHandler(
 	}
 }
 
+/* Takes damageLock until android_end_paint, the trailing flush must not copy
+ * the framebuffer while GDI draws into it. */
 static BOOL android_begin_paint(rdpContext* context)
 {
 	rdpGdi* gdi;
 	HGDI_WND hwnd;
+	androidContext* ctx = (androidContext*)context;
 
 	if (!context)
 		return FALSE;
 
+	if (!ctx->painting)
+	{
+		EnterCriticalSection(&ctx->damageLock);
+		ctx->painting = TRUE;
+	}
+
 	gdi = context->gdi;
 
 	if (!gdi || !gdi->primary || !gdi->primary->hdc)
@@ -151,14 +161,192 @@ static BOOL android_begin_paint(rdpContext* context)
 	return TRUE;
 }
 
-static BOOL android_end_paint(rdpContext* context)
+/* Hands the accumulated damage over to Java as (x, y, width, height) tuples
+ * instead of their bounding box, distant small updates stay small. Called with
+ * damageLock held, so Java sees one producer at a time. */
+static BOOL android_flush_damage(androidContext* ctx)
+{
+	UINT32 i;
+	UINT32 nrects;
+	const RECTANGLE_16* pending;
+	JNIEnv* env;
+	jintArray jrects;
+	jint* rects;
+	BOOL rc = FALSE;
+	pending = region16_rects(&ctx->pendingDamage, &nrects);
+	ctx->lastFlush = GetTickCount64();
+
+	if (nrects == 0)
+		return TRUE;
+
+	if (ctx->pendingUpdates > 1)
+		android_stats_add(ctx, ANDROID_STAT_COALESCED, ctx->pendingUpdates - 1);
+
+	android_stats_add(ctx, ANDROID_STAT_FLUSHES, 1);
+
+	ctx->pendingUpdates = 0;
+	jni_attach_thread(&env);
+	jrects = (*env)->NewIntArray(env, nrects * 4);
+
+	if (!jrects)
+	{
+		WLog_ERR(TAG, "android_flush_damage: failed to allocate region array");
+		goto fail;
+	}
+
+	rects = (*env)->GetIntArrayElements(env, jrects, NULL);
+
+	if (!rects)
+	{
+		(*env)->DeleteLocalRef(env, jrects);
+		goto fail;
+	}
+
+	for (i = 0; i < nrects; i++)
+	{
+		rects[i * 4] = pending[i].left;
+		rects[i * 4 + 1] = pending[i].top;
+		rects[i * 4 + 2] = pending[i].right - pending[i].left;
+		rects[i * 4 + 3] = pending[i].bottom - pending[i].top;
+	}
+
+	(*env)->ReleaseIntArrayElements(env, jrects, rects, 0);
+	freerdp_callback(CALLBACK_ON_GRAPHICS_UPDATE_REGIONS, ctx->rdpCtx.instance, jrects);
+	(*env)->DeleteLocalRef(env, jrects);
+	rc = TRUE;
+fail:
+	region16_clear(&ctx->pendingDamage);
+
+	return rc;
+}
+
+/* Milliseconds until the pending damage is due, INFINITE if there is none.
+ * Called with damageLock held. */
+static DWORD android_flush_timeout_locked(androidContext* ctx)
+{
+	UINT64 elapsed;
+
+	if (region16_is_empty(&ctx->pendingDamage))
+		return INFINITE;
+
+	elapsed = GetTickCount64() - ctx->lastFlush;
+
+	if (elapsed >= ctx->frameInterval)
+		return 0;
+
+	return (DWORD)(ctx->frameInterval - elapsed);
+}
+
+static DWORD android_flush_timeout(androidContext* ctx)
+{
+	DWORD timeout;
+	EnterCriticalSection(&ctx->damageLock);
+	timeout = android_flush_timeout_locked(ctx);
+	LeaveCriticalSection(&ctx->damageLock);
+	return timeout;
+}
+
+/* Trailing flush on the session thread for damage no later end_paint took
+ * along. With AsyncUpdate a paint in progress on the update thread holds
+ * damageLock, so this waits for its end_paint and only ever copies complete
+ * frames. */
+static BOOL android_flush_due(androidContext* ctx)
+{
+	BOOL rc = TRUE;
+	EnterCriticalSection(&ctx->damageLock);
+
+	if (android_flush_timeout_locked(ctx) == 0)
+		rc = android_flush_damage(ctx);
+
+	LeaveCriticalSection(&ctx->damageLock);
+	return rc;
+}
+
+/* CLOCK_MONOTONIC in ns, the clock System.nanoTime reads */
+static UINT64 android_probe_now(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (UINT64)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+/* Moves the probe from state from to WRITING, the caller then owns its fields
+ * until android_probe_release */
+static BOOL android_probe_acquire(ANDROID_LATENCY_PROBE* probe, UINT32 from)
+{
+	return __atomic_compare_exchange_n(&probe->state, &from, ANDROID_PROBE_WRITING, FALSE,
+	                                   __ATOMIC_ACQUIRE, __ATOMIC_RELAXED);
+}
+
+static void android_probe_release(ANDROID_LATENCY_PROBE* probe, UINT32 to)
+{
+	__atomic_store_n(&probe->state, to, __ATOMIC_RELEASE);
+}
+
+/* Starts tracing a pointer event FreeRDP just sent, replacing a probe whose
+ * damage never came. Called by whichever thread processes input. */
+void android_probe_dispatch(androidContext* ctx, UINT16 x, UINT16 y, UINT64 input)
+{
+	UINT32 state;
+	ANDROID_LATENCY_PROBE* probe = &ctx->probe;
+
+	/* The session thread only holds WRITING for a few stores */
+	for (;;)
+	{
+		state = __atomic_load_n(&probe->state, __ATOMIC_RELAXED);
+
+		if ((state != ANDROID_PROBE_WRITING) && android_probe_acquire(probe, state))
+			break;
+	}
+
+	probe->x = x;
+	probe->y = y;
+	probe->times[ANDROID_PROBE_INPUT] = input;
+	probe->times[ANDROID_PROBE_DISPATCHED_AT] = android_probe_now();
+	probe->times[ANDROID_PROBE_PAINTED_AT] = 0;
+	android_probe_release(probe, ANDROID_PROBE_DISPATCHED);
+}
+
+/* The first paint whose damage covers the traced pointer position is taken as
+ * the server's answer to it */
+static void android_probe_paint(androidContext* ctx, HGDI_RGN cinvalid, int ninvalid)
+{
+	int i;
+	ANDROID_LATENCY_PROBE* probe = &ctx->probe;
+
+	if (__atomic_load_n(&probe->state, __ATOMIC_RELAXED) != ANDROID_PROBE_DISPATCHED)
+		return;
+
+	if (!android_probe_acquire(probe, ANDROID_PROBE_DISPATCHED))
+		return;
+
+	for (i = 0; i < ninvalid; i++)
+	{
+		if ((probe->x >= cinvalid[i].x) && (probe->x < cinvalid[i].x + cinvalid[i].w) &&
+		    (probe->y >= cinvalid[i].y) && (probe->y < cinvalid[i].y + cinvalid[i].h))
+		{
+			probe->times[ANDROID_PROBE_PAINTED_AT] = android_probe_now();
+			android_probe_release(probe, ANDROID_PROBE_PAINTED);
+			return;
+		}
+	}
+
+	android_probe_release(probe, ANDROID_PROBE_DISPATCHED);
+}
+
+/* Collects the damage of a paint, called while android_begin_paint still holds
+ * damageLock. The lock is recursive, taking it here again keeps an unpaired
+ * end_paint safe. */
+static BOOL android_end_paint_locked(rdpContext* context)
 {
 	int i;
 	HGDI_WND hwnd;
 	int ninvalid;
 	rdpGdi* gdi;
 	HGDI_RGN cinvalid;
-	int x1, y1, x2, y2;
+	RECTANGLE_16 rect;
+	BOOL burst;
+	BOOL rc = TRUE;
 	androidContext* ctx = (androidContext*)context;
 	rdpSettings* settings;
 
@@ -190,22 +378,60 @@ static BOOL android_end_paint(rdpContext* context)
 	if (!cinvalid)
 		return FALSE;
 
-	x1 = cinvalid[0].x;
-	y1 = cinvalid[0].y;
-	x2 = cinvalid[0].x + cinvalid[0].w;
-	y2 = cinvalid[0].y + cinvalid[0].h;
+	/* Servers can paint hundreds of times per second while scrolling, the
+	 * damage is collected here and handed over at most once per display
+	 * frame (see android_freerdp_run for the trailing flush). */
+	EnterCriticalSection(&ctx->damageLock);
+	burst = region16_is_empty(&ctx->pendingDamage);
 
 	for (i = 0; i < ninvalid; i++)
 	{
-		x1 = MIN(x1, cinvalid[i].x);
-		y1 = MIN(y1, cinvalid[i].y);
-		x2 = MAX(x2, cinvalid[i].x + cinvalid[i].w);
-		y2 = MAX(y2, cinvalid[i].y + cinvalid[i].h);
+		rect.left = cinvalid[i].x;
+		rect.top = cinvalid[i].y;
+		rect.right = cinvalid[i].x + cinvalid[i].w;
+		rect.bottom = cinvalid[i].y + cinvalid[i].h;
+
+		if (!region16_union_rect(&ctx->pendingDamage, &ctx->pendingDamage, &rect))
+		{
+			rc = FALSE;
+			goto out;
+		}
 	}
 
-	freerdp_callback("OnGraphicsUpdate", "(IIIII)V", context->instance,
-	                 x1, y1, x2 - x1, y2 - y1);
-	return TRUE;
+	ctx->pendingUpdates++;
+	android_stats_add(ctx, ANDROID_STAT_UPDATES, 1);
+	android_stats_add(ctx, ANDROID_STAT_UPDATE_RECTS, ninvalid);
+	android_probe_paint(ctx, cinvalid, ninvalid);
+
+	/* The session loop may be waiting without a timeout, a new burst wakes it
+	 * up to schedule the trailing flush. */
+	if (android_flush_timeout_locked(ctx) == 0)
+		rc = android_flush_damage(ctx);
+	else if (burst)
+		SetEvent(ctx->damageEvent);
+
+out:
+	LeaveCriticalSection(&ctx->damageLock);
+	return rc;
+}
+
+static BOOL android_end_paint(rdpContext* context)
+{
+	BOOL rc;
+	androidContext* ctx = (androidContext*)context;
+
+	if (!ctx)
+		return FALSE;
+
+	rc = android_end_paint_locked(context);
+
+	if (ctx->painting)
+	{
+		ctx->painting = FALSE;
+		LeaveCriticalSection(&ctx->damageLock);
+	}
+
+	return rc;
 }
 
 static BOOL android_desktop_resize(rdpContext* context)
@@ -213,7 +439,12 @@ static BOOL android_desktop_resize(rdpContext* context)
 	if (!context || !context->instance || !context->settings)
 		return FALSE;
 
-	freerdp_callback("OnGraphicsResize", "(IIII)V",
+	/* Coordinates of coalesced damage refer to the old desktop */
+	EnterCriticalSection(&((androidContext*)context)->damageLock);
+	region16_clear(&((androidContext*)context)->pendingDamage);
+	((androidContext*)context)->pendingUpdates = 0;
+	LeaveCriticalSection(&((androidContext*)context)->damageLock);
+	freerdp_callback(CALLBACK_ON_GRAPHICS_RESIZE,
 	                 context->instance, context->settings->DesktopWidth,
 	                 context->settings->DesktopHeight, context->settings->ColorDepth);
 	return TRUE;
@@ -287,7 +518,7 @@ static BOOL android_pre_connect(freerdp* instance)
 		return FALSE;
 	}
 
-	freerdp_callback("OnPreConnect", "(I)V", instance);
+	freerdp_callback(CALLBACK_ON_PRE_CONNECT, instance);
 	return TRUE;
 }
 
@@ -368,7 +599,10 @@ static BOOL android_post_connect(freerdp* instance)
 	update = instance->update;
 	settings = instance->settings;
 
-	if (!gdi_init(instance, PIXEL_FORMAT_RGBA32))
+	/* Low color sessions keep a 16 bit framebuffer all the way to the
+	 * GL_UNSIGNED_SHORT_5_6_5 textures, halving copy and upload bandwidth */
+	if (!gdi_init(instance, (settings->ColorDepth <= 16) ?
+	              PIXEL_FORMAT_RGB16 : PIXEL_FORMAT_RGBA32))
 		return FALSE;
 
 	if (!android_register_pointer(instance->context->graphics))
@@ -378,34 +612,29 @@ static BOOL android_post_connect(freerdp* instance)
 	instance->update->EndPaint = android_end_paint;
 	instance->update->DesktopResize = android_desktop_resize;
 	pointer_cache_register_callbacks(update);
-	freerdp_callback("OnSettingsChanged", "(IIII)V", instance,
+	freerdp_callback(CALLBACK_ON_SETTINGS_CHANGED, instance,
 	                 settings->DesktopWidth, settings->DesktopHeight,
 	                 settings->ColorDepth);
-	freerdp_callback("OnConnectionSuccess", "(I)V", instance);
+	freerdp_callback(CALLBACK_ON_CONNECTION_SUCCESS, instance);
 	return TRUE;
 }
 
 static void android_post_disconnect(freerdp* instance)
 {
-	freerdp_callback("OnDisconnecting", "(I)V", instance);
+	freerdp_callback(CALLBACK_ON_DISCONNECTING, instance);
 	gdi_free(instance);
 }
 
 static BOOL android_authenticate_int(freerdp* instance, char** username,
-                                     char** password, char** domain, const char* cb_name)
+                                     char** password, char** domain, ANDROID_CALLBACK callback)
 {
 	JNIEnv* env;
-	jboolean attached = jni_attach_thread(&env);
+	jni_attach_thread(&env);
 	jobject jstr1 = create_string_builder(env, *username);
 	jobject jstr2 = create_string_builder(env, *domain);
 	jobject jstr3 = create_string_builder(env, *password);
 	jboolean res;
-	res = freerdp_callback_bool_result(
-	          cb_name,
-	          "(ILjava/lang/StringBuilder;"
-	          "Ljava/lang/StringBuilder;"
-	          "Ljava/lang/StringBuilder;)Z",
-	          instance, jstr1, jstr2, jstr3);
+	res = freerdp_callback_bool_result(callback, instance, jstr1, jstr2, jstr3);
 
 	if (res == JNI_TRUE)
 	{
@@ -418,8 +647,10 @@ static BOOL android_authenticate_int(freerdp* instance, char** username,
 		*password = get_string_from_string_builder(env, jstr3);
 	}
 
-	if (attached == JNI_TRUE)
-		jni_detach_thread();
+	/* Long lived threads stay attached, local references are not freed for us */
+	(*env)->DeleteLocalRef(env, jstr1);
+	(*env)->DeleteLocalRef(env, jstr2);
+	(*env)->DeleteLocalRef(env, jstr3);
 
 	return ((res == JNI_TRUE) ? TRUE : FALSE);
 }
@@ -428,14 +659,14 @@ static BOOL android_authenticate(freerdp* instance, char** username,
                                  char** password, char** domain)
 {
 	return android_authenticate_int(instance, username, password, domain,
-	                                "OnAuthenticate");
+	                                CALLBACK_ON_AUTHENTICATE);
 }
 
 static BOOL android_gw_authenticate(freerdp* instance, char** username,
                                     char** password, char** domain)
 {
 	return android_authenticate_int(instance, username, password, domain,
-	                                "OnGatewayAuthenticate");
+	                                CALLBACK_ON_GATEWAY_AUTHENTICATE);
 }
 
 static DWORD android_verify_certificate(
@@ -452,17 +683,17 @@ static DWORD android_verify_certificate(
 	         "the CA certificate in your certificate store, or the certificate has expired."
 	         "Please look at the documentation on how to create local certificate store for a private CA.\n");
 	JNIEnv* env;
-	jboolean attached = jni_attach_thread(&env);
+	jni_attach_thread(&env);
 	jstring jstr0 = (*env)->NewStringUTF(env, common_name);
 	jstring jstr1 = (*env)->NewStringUTF(env, subject);
 	jstring jstr2 = (*env)->NewStringUTF(env, issuer);
 	jstring jstr3 = (*env)->NewStringUTF(env, fingerprint);
-	jint res = freerdp_callback_int_result("OnVerifyCertificate",
-	                                       "(ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)I",
+	jint res = freerdp_callback_int_result(CALLBACK_ON_VERIFY_CERTIFICATE,
 	                                       instance, jstr0, jstr1, jstr2, jstr3, host_mismatch);
-
-	if (attached == JNI_TRUE)
-		jni_detach_thread();
+	(*env)->DeleteLocalRef(env, jstr0);
+	(*env)->DeleteLocalRef(env, jstr1);
+	(*env)->DeleteLocalRef(env, jstr2);
+	(*env)->DeleteLocalRef(env, jstr3);
 
 	return res;
 }
@@ -477,7 +708,7 @@ static DWORD android_verify_changed_certificate(freerdp* instance,
         const char* old_fingerprint)
 {
 	JNIEnv* env;
-	jboolean attached = jni_attach_thread(&env);
+	jni_attach_thread(&env);
 	jstring jstr0 = (*env)->NewStringUTF(env, common_name);
 	jstring jstr1 = (*env)->NewStringUTF(env, subject);
 	jstring jstr2 = (*env)->NewStringUTF(env, issuer);
@@ -485,13 +716,15 @@ static DWORD android_verify_changed_certificate(freerdp* instance,
 	jstring jstr4 = (*env)->NewStringUTF(env, old_subject);
 	jstring jstr5 = (*env)->NewStringUTF(env, old_issuer);
 	jstring jstr6 = (*env)->NewStringUTF(env, old_fingerprint);
-	jint res = freerdp_callback_int_result("OnVerifyChangedCertificate",
-	                                       "(ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;"
-	                                       "Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I",
+	jint res = freerdp_callback_int_result(CALLBACK_ON_VERIFY_CHANGED_CERTIFICATE,
 	                                       instance, jstr0, jstr1, jstr2, jstr3, jstr4, jstr5, jstr6);
-
-	if (attached == JNI_TRUE)
-		jni_detach_thread();
+	(*env)->DeleteLocalRef(env, jstr0);
+	(*env)->DeleteLocalRef(env, jstr1);
+	(*env)->DeleteLocalRef(env, jstr2);
+	(*env)->DeleteLocalRef(env, jstr3);
+	(*env)->DeleteLocalRef(env, jstr4);
+	(*env)->DeleteLocalRef(env, jstr5);
+	(*env)->DeleteLocalRef(env, jstr6);
 
 	return res;
 }
@@ -501,6 +734,8 @@ static void* jni_input_thread(void* arg)
 	HANDLE event[2];
 	wMessageQueue* queue;
 	freerdp* instance = (freerdp*) arg;
+	JNIEnv* env;
+	jni_attach_thread(&env);
 	WLog_DBG(TAG, "input_thread Start.");
 
 	if (!(queue = freerdp_get_message_queue(instance, FREERDP_INPUT_MESSAGE_QUEUE)))
@@ -537,6 +772,7 @@ static void* jni_input_thread(void* arg)
 	WLog_DBG(TAG, "input_thread Quit.");
 disconnect:
 	MessageQueue_PostQuit(queue, 0);
+
 	ExitThread(0);
 	return NULL;
 }
@@ -550,6 +786,7 @@ static int android_freerdp_run(freerdp* instance)
 	HANDLE inputThread = NULL;
 	const rdpSettings* settings = instance->context->settings;
 	rdpContext* context = instance->context;
+	androidContext* ctx = (androidContext*)context;
 	BOOL async_input = settings->AsyncInput;
 	WLog_DBG(TAG, "AsyncInput=%d", settings->AsyncInput);
 
@@ -575,6 +812,8 @@ static int android_freerdp_run(freerdp* instance)
 		else
 			handles[count++] = inputEvent;
 
+		handles[count++] = ctx->damageEvent;
+
 		tmp = freerdp_get_event_handles(context, &handles[count], 64 - count);
 
 		if (tmp == 0)
@@ -584,7 +823,8 @@ static int android_freerdp_run(freerdp* instance)
 		}
 
 		count += tmp;
-		status = WaitForMultipleObjects(count, handles, FALSE, INFINITE);
+		status = WaitForMultipleObjects(count, handles, FALSE,
+		                                android_flush_timeout(ctx));
 
 		if ((status == WAIT_FAILED))
 		{
@@ -593,6 +833,9 @@ static int android_freerdp_run(freerdp* instance)
 			break;
 		}
 
+		/* Damage coalesced in android_end_paint is due */
+		android_flush_due(ctx);
+
 		if (!freerdp_check_event_handles(context))
 		{
 			/* TODO: Auto reconnect
@@ -634,6 +877,9 @@ static void* android_thread_func(void* param)
 {
 	DWORD status = ERROR_BAD_ARGUMENTS;
 	freerdp* instance = param;
+	JNIEnv* env;
+	/* The thread stays attached until it exits, see jni_attach_thread */
+	jni_attach_thread(&env);
 	WLog_DBG(TAG, "Start...");
 
 	if (!instance || !instance->context)
@@ -664,11 +910,12 @@ fail:
 	WLog_DBG(TAG, "Session ended with %08lX", status);
 
 	if (status == CHANNEL_RC_OK)
-		freerdp_callback("OnDisconnected", "(I)V", instance);
+		freerdp_callback(CALLBACK_ON_DISCONNECTED, instance);
 	else
-		freerdp_callback("OnConnectionFailure", "(I)V", instance);
+		freerdp_callback(CALLBACK_ON_CONNECTION_FAILURE, instance);
 
 	WLog_DBG(TAG, "Quit.");
+
 	ExitThread(status);
 	return NULL;
 }
@@ -681,6 +928,13 @@ static BOOL android_client_new(freerdp* instance, rdpContext* context)
 	if (!android_event_queue_init(instance))
 		return FALSE;
 
+	if (!(((androidContext*)context)->damageEvent = CreateEvent(NULL, FALSE, FALSE, NULL)))
+		return FALSE;
+
+	InitializeCriticalSection(&((androidContext*)context)->damageLock);
+	region16_init(&((androidContext*)context)->pendingDamage);
+	((androidContext*)context)->frameInterval = ANDROID_DEFAULT_FRAME_INTERVAL;
+
 	instance->PreConnect = android_pre_connect;
 	instance->PostConnect = android_post_connect;
 	instance->PostDisconnect = android_post_disconnect;
@@ -699,6 +953,15 @@ static void android_client_free(freerdp* instance, rdpContext* context)
 		return;
 
 	android_event_queue_uninit(instance);
+	region16_uninit(&((androidContext*)context)->pendingDamage);
+
+	/* the lock only exists if the event was created, see android_client_new */
+	if (((androidContext*)context)->damageEvent)
+	{
+		DeleteCriticalSection(&((androidContext*)context)->damageLock);
+		CloseHandle(((androidContext*)context)->damageEvent);
+		((androidContext*)context)->damageEvent = NULL;
+	}
 }
 
 static int RdpClientEntry(RDP_CLIENT_ENTRY_POINTS* pEntryPoints)
@@ -857,6 +1120,296 @@ static jboolean JNICALL jni_freerdp_parse_arguments(
 	return (status == 0) ? JNI_TRUE : JNI_FALSE;
 }
 
+#define SETTING_TYPE_BOOL	0
+#define SETTING_TYPE_UINT32	1
+#define SETTING_TYPE_STRING	2
+
+struct android_setting
+{
+	int id;
+	int type;
+};
+
+/* Settings Java can set directly, indexed by LibFreeRDP.Settings keys. Java
+ * does not depend on the FreeRDP_* ids, which move between FreeRDP versions.
+ * Keep in sync with LibFreeRDP.Settings. */
+static const struct android_setting android_settings[] =
+{
+	{ FreeRDP_ServerHostname, SETTING_TYPE_STRING },
+	{ FreeRDP_ServerPort, SETTING_TYPE_UINT32 },
+	{ FreeRDP_Username, SETTING_TYPE_STRING },
+	{ FreeRDP_Domain, SETTING_TYPE_STRING },
+	{ FreeRDP_Password, SETTING_TYPE_STRING },
+	{ FreeRDP_DesktopWidth, SETTING_TYPE_UINT32 },
+	{ FreeRDP_DesktopHeight, SETTING_TYPE_UINT32 },
+	{ FreeRDP_ColorDepth, SETTING_TYPE_UINT32 },
+	{ FreeRDP_ConsoleSession, SETTING_TYPE_BOOL },
+	{ FreeRDP_RdpSecurity, SETTING_TYPE_BOOL },
+	{ FreeRDP_TlsSecurity, SETTING_TYPE_BOOL },
+	{ FreeRDP_NlaSecurity, SETTING_TYPE_BOOL },
+	{ FreeRDP_ExtSecurity, SETTING_TYPE_BOOL },
+	{ FreeRDP_UseRdpSecurityLayer, SETTING_TYPE_BOOL },
+	{ FreeRDP_CertificateName, SETTING_TYPE_STRING },
+	{ FreeRDP_SupportGraphicsPipeline, SETTING_TYPE_BOOL },
+	{ FreeRDP_GfxH264, SETTING_TYPE_BOOL },
+	{ FreeRDP_DisableWallpaper, SETTING_TYPE_BOOL },
+	{ FreeRDP_DisableFullWindowDrag, SETTING_TYPE_BOOL },
+	{ FreeRDP_DisableMenuAnims, SETTING_TYPE_BOOL },
+	{ FreeRDP_DisableThemes, SETTING_TYPE_BOOL },
+	{ FreeRDP_AllowFontSmoothing, SETTING_TYPE_BOOL },
+	{ FreeRDP_AllowDesktopComposition, SETTING_TYPE_BOOL },
+	{ FreeRDP_GlyphSupportLevel, SETTING_TYPE_UINT32 },
+	{ FreeRDP_ShellWorkingDirectory, SETTING_TYPE_STRING },
+	{ FreeRDP_AsyncChannels, SETTING_TYPE_BOOL },
+	{ FreeRDP_AsyncTransport, SETTING_TYPE_BOOL },
+	{ FreeRDP_AsyncInput, SETTING_TYPE_BOOL },
+	{ FreeRDP_AsyncUpdate, SETTING_TYPE_BOOL },
+	{ FreeRDP_RedirectClipboard, SETTING_TYPE_BOOL },
+	{ FreeRDP_SoftwareGdi, SETTING_TYPE_BOOL }
+};
+
+static const struct android_setting* android_get_setting(jint key, int type)
+{
+	if ((key < 0) || (key >= ARRAYSIZE(android_settings)))
+	{
+		WLog_ERR(TAG, "Unknown setting %d", key);
+		return NULL;
+	}
+
+	if (android_settings[key].type != type)
+	{
+		WLog_ERR(TAG, "Setting %d has type %d, not %d", key, android_settings[key].type,
+		         type);
+		return NULL;
+	}
+
+	return &android_settings[key];
+}
+
+static BOOL android_set_number_setting(rdpSettings* settings, jint key, jlong value)
+{
+	int type;
+
+	if ((key < 0) || (key >= ARRAYSIZE(android_settings)))
+	{
+		WLog_ERR(TAG, "Unknown setting %d", key);
+		return FALSE;
+	}
+
+	type = android_settings[key].type;
+
+	if (type == SETTING_TYPE_BOOL)
+		return freerdp_set_param_bool(settings, android_settings[key].id,
+		                              (value != 0) ? TRUE : FALSE) >= 0;
+
+	if (type == SETTING_TYPE_UINT32)
+		return freerdp_set_param_uint32(settings, android_settings[key].id, (UINT32)value) >= 0;
+
+	WLog_ERR(TAG, "Setting %d is not a number", key);
+	return FALSE;
+}
+
+static jboolean JNICALL jni_freerdp_set_int_setting(
+    JNIEnv* env, jclass cls, jint instance, jint key, jint value)
+{
+	freerdp* inst = (freerdp*)instance;
+	const struct android_setting* setting;
+
+	if (!inst || !inst->settings)
+		return JNI_FALSE;
+
+	if (!(setting = android_get_setting(key, SETTING_TYPE_UINT32)))
+		return JNI_FALSE;
+
+	return (freerdp_set_param_uint32(inst->settings, setting->id, value) >= 0) ?
+	       JNI_TRUE : JNI_FALSE;
+}
+
+static jboolean JNICALL jni_freerdp_set_bool_setting(
+    JNIEnv* env, jclass cls, jint instance, jint key, jboolean value)
+{
+	freerdp* inst = (freerdp*)instance;
+	const struct android_setting* setting;
+
+	if (!inst || !inst->settings)
+		return JNI_FALSE;
+
+	if (!(setting = android_get_setting(key, SETTING_TYPE_BOOL)))
+		return JNI_FALSE;
+
+	if (freerdp_set_param_bool(inst->settings, setting->id, (value == JNI_TRUE)) < 0)
+		return JNI_FALSE;
+
+	freerdp_performance_flags_make(inst->settings);
+	return JNI_TRUE;
+}
+
+static jboolean JNICALL jni_freerdp_set_string_setting(
+    JNIEnv* env, jclass cls, jint instance, jint key, jstring jvalue)
+{
+	freerdp* inst = (freerdp*)instance;
+	const struct android_setting* setting;
+	const char* value;
+	int status;
+
+	if (!inst || !inst->settings)
+		return JNI_FALSE;
+
+	if (!(setting = android_get_setting(key, SETTING_TYPE_STRING)))
+		return JNI_FALSE;
+
+	if (!jvalue)
+		return (freerdp_set_param_string(inst->settings, setting->id, NULL) >= 0) ?
+		       JNI_TRUE : JNI_FALSE;
+
+	if (!(value = (*env)->GetStringUTFChars(env, jvalue, NULL)))
+		return JNI_FALSE;
+
+	status = freerdp_set_param_string(inst->settings, setting->id, value);
+	(*env)->ReleaseStringUTFChars(env, jvalue, value);
+	return (status >= 0) ? JNI_TRUE : JNI_FALSE;
+}
+
+/* Bool and integer settings in one call, values of bool settings are 0 or 1 */
+static jboolean JNICALL jni_freerdp_apply_settings(
+    JNIEnv* env, jclass cls, jint instance, jintArray jkeys, jlongArray jvalues)
+{
+	freerdp* inst = (freerdp*)instance;
+	jint* keys;
+	jlong* values;
+	jsize i, count;
+	jboolean rc = JNI_TRUE;
+
+	if (!inst || !inst->settings || !jkeys || !jvalues)
+		return JNI_FALSE;
+
+	count = (*env)->GetArrayLength(env, jkeys);
+
+	if ((*env)->GetArrayLength(env, jvalues) < count)
+		return JNI_FALSE;
+
+	if (!(keys = (*env)->GetIntArrayElements(env, jkeys, NULL)))
+		return JNI_FALSE;
+
+	if (!(values = (*env)->GetLongArrayElements(env, jvalues, NULL)))
+	{
+		(*env)->ReleaseIntArrayElements(env, jkeys, keys, JNI_ABORT);
+		return JNI_FALSE;
+	}
+
+	for (i = 0; (i < count) && rc; i++)
+		rc = android_set_number_setting(inst->settings, keys[i], values[i]) ? JNI_TRUE : JNI_FALSE;
+
+	freerdp_performance_flags_make(inst->settings);
+	(*env)->ReleaseLongArrayElements(env, jvalues, values, JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, jkeys, keys, JNI_ABORT);
+	return rc;
+}
+
+/* Reads bool and integer settings back, e.g. what the server negotiated */
+static jboolean JNICALL jni_freerdp_get_settings(
+    JNIEnv* env, jclass cls, jint instance, jintArray jkeys, jlongArray jvalues)
+{
+	freerdp* inst = (freerdp*)instance;
+	jint* keys;
+	jlong* values;
+	jsize i, count;
+	jboolean rc = JNI_TRUE;
+
+	if (!inst || !inst->settings || !jkeys || !jvalues)
+		return JNI_FALSE;
+
+	count = (*env)->GetArrayLength(env, jkeys);
+
+	if ((*env)->GetArrayLength(env, jvalues) < count)
+		return JNI_FALSE;
+
+	if (!(keys = (*env)->GetIntArrayElements(env, jkeys, NULL)))
+		return JNI_FALSE;
+
+	if (!(values = (*env)->GetLongArrayElements(env, jvalues, NULL)))
+	{
+		(*env)->ReleaseIntArrayElements(env, jkeys, keys, JNI_ABORT);
+		return JNI_FALSE;
+	}
+
+	for (i = 0; i < count; i++)
+	{
+		const struct android_setting* setting;
+
+		if ((keys[i] < 0) || (keys[i] >= ARRAYSIZE(android_settings)))
+		{
+			rc = JNI_FALSE;
+			break;
+		}
+
+		setting = &android_settings[keys[i]];
+
+		if (setting->type == SETTING_TYPE_BOOL)
+			values[i] = freerdp_get_param_bool(inst->settings, setting->id) ? 1 : 0;
+		else if (setting->type == SETTING_TYPE_UINT32)
+			values[i] = freerdp_get_param_uint32(inst->settings, setting->id);
+		else
+		{
+			rc = JNI_FALSE;
+			break;
+		}
+	}
+
+	(*env)->ReleaseLongArrayElements(env, jvalues, values, (rc == JNI_TRUE) ? 0 : JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, jkeys, keys, JNI_ABORT);
+	return rc;
+}
+
+/* Announces the monitors, packed as { x, y, width, height } in framebuffer
+ * coordinates. RDP wants the primary monitor at the origin, the others are
+ * shifted along, and the desktop spans their bounding box. */
+static jboolean JNICALL jni_freerdp_set_monitor_layout(
+    JNIEnv* env, jclass cls, jint instance, jintArray jmonitors, jint primary)
+{
+	freerdp* inst = (freerdp*)instance;
+	rdpSettings* settings;
+	jint* monitors;
+	jsize i, count;
+	INT32 right = 0;
+	INT32 bottom = 0;
+
+	if (!inst || !inst->settings || !jmonitors)
+		return JNI_FALSE;
+
+	settings = inst->settings;
+	count = (*env)->GetArrayLength(env, jmonitors) / 4;
+
+	if ((count < 1) || (count > (jsize)settings->MonitorDefArraySize) || (primary < 0) ||
+	    (primary >= count))
+	{
+		WLog_ERR(TAG, "Invalid monitor layout: %d monitors, primary %d", count, primary);
+		return JNI_FALSE;
+	}
+
+	if (!(monitors = (*env)->GetIntArrayElements(env, jmonitors, NULL)))
+		return JNI_FALSE;
+
+	for (i = 0; i < count; i++)
+	{
+		rdpMonitor* monitor = &settings->MonitorDefArray[i];
+		monitor->x = monitors[i * 4] - monitors[primary * 4];
+		monitor->y = monitors[i * 4 + 1] - monitors[primary * 4 + 1];
+		monitor->width = monitors[i * 4 + 2];
+		monitor->height = monitors[i * 4 + 3];
+		monitor->is_primary = (i == primary);
+		right = MAX(right, monitors[i * 4] + monitors[i * 4 + 2]);
+		bottom = MAX(bottom, monitors[i * 4 + 1] + monitors[i * 4 + 3]);
+	}
+
+	(*env)->ReleaseIntArrayElements(env, jmonitors, monitors, JNI_ABORT);
+	settings->MonitorCount = count;
+	settings->UseMultimon = (count > 1);
+	settings->DesktopWidth = right;
+	settings->DesktopHeight = bottom;
+	return JNI_TRUE;
+}
+
 static jboolean JNICALL jni_freerdp_connect(JNIEnv* env, jclass cls,
         jint instance)
 {
@@ -887,7 +1440,7 @@ static jboolean JNICALL jni_freerdp_disconnect(JNIEnv* env, jclass cls,
 {
 	freerdp* inst = (freerdp*)instance;
 	androidContext* ctx;
-	ANDROID_EVENT* event;
+	ANDROID_EVENT event;
 
 	if (!inst || !inst->context || !cls || !env)
 	{
@@ -897,175 +1450,299 @@ static jboolean JNICALL jni_freerdp_disconnect(JNIEnv* env, jclass cls,
 	}
 
 	ctx = (androidContext*)inst->context;
-	event = (ANDROID_EVENT*)android_event_disconnect_new();
+	android_event_disconnect_init(&event);
 
-	if (!event)
+	if (!android_push_event(inst, &event))
 		return JNI_FALSE;
 
-	if (!android_push_event(inst, event))
-	{
-		android_event_free((ANDROID_EVENT*)event);
-		return JNI_FALSE;
-	}
-
 	if (!freerdp_abort_connect(inst))
 		return JNI_FALSE;
 
 	return JNI_TRUE;
 }
 
-static jboolean JNICALL jni_freerdp_update_graphics(
-    JNIEnv* env, jclass cls, jint instance, jobject bitmap,
-    jint x, jint y, jint width, jint height)
+/* Keep in sync with LibFreeRDP.Framebuffer */
+#define FRAMEBUFFER_INFO_WIDTH		0
+#define FRAMEBUFFER_INFO_HEIGHT		1
+#define FRAMEBUFFER_INFO_STRIDE		2
+#define FRAMEBUFFER_INFO_FORMAT		3
+#define FRAMEBUFFER_INFO_COUNT		4
+
+#define FRAMEBUFFER_FORMAT_UNKNOWN	0
+#define FRAMEBUFFER_FORMAT_RGBA32	1
+#define FRAMEBUFFER_FORMAT_RGB16	2
+
+static jobject JNICALL jni_freerdp_get_framebuffer(
+    JNIEnv* env, jclass cls, jint instance, jintArray jinfo)
 {
-	UINT32 DstFormat;
-	jboolean rc;
-	int ret;
-	void* pixels;
-	AndroidBitmapInfo info;
+	jint info[FRAMEBUFFER_INFO_COUNT];
 	freerdp* inst = (freerdp*)instance;
 	rdpGdi* gdi;
 
-	if (!env || !cls || !inst)
+	if (!env || !cls || !inst || !inst->context || !jinfo)
 	{
 		WLog_FATAL(TAG, "%s(env=%p, cls=%p, instance=%d", __FUNCTION__,
 		           env, cls, instance);
-		return JNI_FALSE;
+		return NULL;
 	}
 
-	gdi = inst->context->gdi;
+	if ((*env)->GetArrayLength(env, jinfo) < FRAMEBUFFER_INFO_COUNT)
+		return NULL;
 
-	if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0)
-	{
-		WLog_FATAL(TAG, "AndroidBitmap_getInfo() failed ! error=%d", ret);
-		return JNI_FALSE;
-	}
+	gdi = inst->context->gdi;
 
-	if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0)
-	{
-		WLog_FATAL(TAG, "AndroidBitmap_lockPixels() failed ! error=%d", ret);
-		return JNI_FALSE;
-	}
+	if (!gdi || !gdi->primary_buffer)
+		return NULL;
 
-	rc = JNI_TRUE;
+	info[FRAMEBUFFER_INFO_WIDTH] = gdi->width;
+	info[FRAMEBUFFER_INFO_HEIGHT] = gdi->height;
+	info[FRAMEBUFFER_INFO_STRIDE] = gdi->stride;
 
-	switch (info.format)
+	switch (gdi->dstFormat)
 	{
-		case ANDROID_BITMAP_FORMAT_RGBA_8888:
-			DstFormat = PIXEL_FORMAT_RGBA32;
+		case PIXEL_FORMAT_RGBA32:
+			info[FRAMEBUFFER_INFO_FORMAT] = FRAMEBUFFER_FORMAT_RGBA32;
 			break;
 
-		case ANDROID_BITMAP_FORMAT_RGB_565:
-			DstFormat = PIXEL_FORMAT_RGB16;
+		case PIXEL_FORMAT_RGB16:
+			info[FRAMEBUFFER_INFO_FORMAT] = FRAMEBUFFER_FORMAT_RGB16;
 			break;
 
-		case ANDROID_BITMAP_FORMAT_RGBA_4444:
-		case ANDROID_BITMAP_FORMAT_A_8:
-		case ANDROID_BITMAP_FORMAT_NONE:
 		default:
-			rc = JNI_FALSE;
+			info[FRAMEBUFFER_INFO_FORMAT] = FRAMEBUFFER_FORMAT_UNKNOWN;
 			break;
 	}
 
-	if (rc)
-	{
-		rc = freerdp_image_copy(pixels, DstFormat, info.stride, x, y, width, height,
-		                        gdi->primary_buffer, gdi->dstFormat, gdi->stride, x, y,
-		                        &gdi->palette, FREERDP_FLIP_NONE);
-	}
-
-	if ((ret = AndroidBitmap_unlockPixels(env, bitmap)) < 0)
-	{
-		WLog_FATAL(TAG, "AndroidBitmap_unlockPixels() failed ! error=%d", ret);
-		return JNI_FALSE;
-	}
+	(*env)->SetIntArrayRegion(env, jinfo, 0, FRAMEBUFFER_INFO_COUNT, info);
+	/* The view aliases the GDI primary buffer, it is only valid until
+	 * gdi_free() in android_post_disconnect. */
+	return (*env)->NewDirectByteBuffer(env, gdi->primary_buffer,
+	                                   (jlong)gdi->stride * gdi->height);
+}
 
-	return rc;
+static void android_virtual_key_init(ANDROID_EVENT* event, jint keycode, BOOL down)
+{
+	DWORD scancode = GetVirtualScanCodeFromVirtualKeyCode(keycode, 4);
+	int flags = down ? KBD_FLAGS_DOWN : KBD_FLAGS_RELEASE;
+	flags |= (scancode & KBDEXT) ? KBD_FLAGS_EXTENDED : 0;
+	android_event_key_init(event, flags, scancode & 0xFF);
 }
 
 static jboolean JNICALL jni_freerdp_send_key_event(
     JNIEnv* env, jclass cls, jint instance,
     jint keycode, jboolean down)
 {
-	DWORD scancode;
-	ANDROID_EVENT* event;
+	ANDROID_EVENT event;
 	freerdp* inst = (freerdp*)instance;
-	scancode = GetVirtualScanCodeFromVirtualKeyCode(keycode, 4);
-	int flags = (down == JNI_TRUE) ? KBD_FLAGS_DOWN : KBD_FLAGS_RELEASE;
-	flags |= (scancode & KBDEXT) ? KBD_FLAGS_EXTENDED : 0;
-	event = (ANDROID_EVENT*) android_event_key_new(flags, scancode & 0xFF);
+	android_virtual_key_init(&event, keycode, down == JNI_TRUE);
 
-	if (!event)
+	if (!android_push_event(inst, &event))
 		return JNI_FALSE;
 
-	if (!android_push_event(inst, event))
-	{
-		android_event_free(event);
-		return JNI_FALSE;
-	}
-
-	WLog_DBG(TAG, "send_key_event: %d, %d", (int)scancode, flags);
+	WLog_DBG(TAG, "send_key_event: %d, %d", (int)event.key.scancode, event.key.flags);
 	return JNI_TRUE;
 }
 
 static jboolean JNICALL jni_freerdp_send_unicodekey_event(
     JNIEnv* env, jclass cls, jint instance, jint keycode)
 {
-	ANDROID_EVENT* event;
+	ANDROID_EVENT event;
 	freerdp* inst = (freerdp*)instance;
-	event = (ANDROID_EVENT*) android_event_unicodekey_new(keycode);
+	android_event_unicodekey_init(&event, keycode);
 
-	if (!event)
+	if (!android_push_event(inst, &event))
 		return JNI_FALSE;
 
-	if (!android_push_event(inst, event))
-	{
-		android_event_free(event);
+	WLog_DBG(TAG, "send_unicodekey_event: %d", keycode);
+	return JNI_TRUE;
+}
+
+static jboolean JNICALL jni_freerdp_set_frame_interval(
+    JNIEnv* env, jclass cls, jint instance, jint interval)
+{
+	freerdp* inst = (freerdp*)instance;
+
+	if (!inst || !inst->context || (interval < 0))
 		return JNI_FALSE;
-	}
 
-	WLog_DBG(TAG, "send_unicodekey_event: %d", keycode);
+	EnterCriticalSection(&((androidContext*)inst->context)->damageLock);
+	((androidContext*)inst->context)->frameInterval = interval;
+	LeaveCriticalSection(&((androidContext*)inst->context)->damageLock);
 	return JNI_TRUE;
 }
 
-static jboolean JNICALL jni_freerdp_send_cursor_event(
-    JNIEnv* env, jclass cls, jint instance, jint x, jint y, jint flags)
+static jboolean JNICALL jni_freerdp_get_stats(
+    JNIEnv* env, jclass cls, jint instance, jlongArray jstats)
 {
-	ANDROID_EVENT* event;
+	int i;
+	jlong stats[ANDROID_STAT_COUNT];
+	UINT64 inBytes = 0;
+	UINT64 outBytes, inPackets, outPackets;
 	freerdp* inst = (freerdp*)instance;
-	event = (ANDROID_EVENT*) android_event_cursor_new(flags, x, y);
+	androidContext* ctx;
 
-	if (!event)
+	if (!inst || !inst->context || !jstats)
 		return JNI_FALSE;
 
-	if (!android_push_event(inst, event))
-	{
-		android_event_free(event);
+	if ((*env)->GetArrayLength(env, jstats) < ANDROID_STAT_COUNT)
+		return JNI_FALSE;
+
+	ctx = (androidContext*)inst->context;
+
+	for (i = 0; i < ANDROID_STAT_COUNT; i++)
+		stats[i] = __atomic_load_n(&ctx->stats[i], __ATOMIC_RELAXED);
+
+	if (ctx->event_queue)
+		stats[ANDROID_STAT_QUEUE_DEPTH] = android_event_queue_depth(ctx->event_queue);
+
+	if (inst->context->rdp && freerdp_get_stats(inst->context->rdp, &inBytes, &outBytes, &inPackets,
+	        &outPackets))
+		stats[ANDROID_STAT_BYTES_RECEIVED] = inBytes;
+
+	(*env)->SetLongArrayRegion(env, jstats, 0, ANDROID_STAT_COUNT, stats);
+	return JNI_TRUE;
+}
+
+/* Hands a painted probe over to Java and frees it for the next one, see
+ * ANDROID_PROBE_* for the layout */
+static jboolean JNICALL jni_freerdp_take_latency_probe(
+    JNIEnv* env, jclass cls, jint instance, jlongArray jtimes)
+{
+	int i;
+	jlong times[ANDROID_PROBE_COUNT];
+	freerdp* inst = (freerdp*)instance;
+	ANDROID_LATENCY_PROBE* probe;
+
+	if (!inst || !inst->context || !jtimes)
+		return JNI_FALSE;
+
+	if ((*env)->GetArrayLength(env, jtimes) < ANDROID_PROBE_COUNT)
+		return JNI_FALSE;
+
+	probe = &((androidContext*)inst->context)->probe;
+
+	if (!android_probe_acquire(probe, ANDROID_PROBE_PAINTED))
+		return JNI_FALSE;
+
+	for (i = 0; i < ANDROID_PROBE_COUNT; i++)
+		times[i] = probe->times[i];
+
+	android_probe_release(probe, ANDROID_PROBE_IDLE);
+	(*env)->SetLongArrayRegion(env, jtimes, 0, ANDROID_PROBE_COUNT, times);
+	return JNI_TRUE;
+}
+
+static jboolean JNICALL jni_freerdp_send_cursor_event(
+    JNIEnv* env, jclass cls, jint instance, jint x, jint y, jint flags, jlong trace)
+{
+	ANDROID_EVENT event;
+	freerdp* inst = (freerdp*)instance;
+	android_event_cursor_init(&event, flags, x, y);
+	event.cursor.trace = trace;
+
+	if (!android_push_event(inst, &event))
 		return JNI_FALSE;
-	}
 
 	WLog_DBG(TAG, "send_cursor_event: (%d, %d), %d", x, y, flags);
 	return JNI_TRUE;
 }
 
+/* Converts and queues the batch in chunks, see INPUT_BATCH_STRIDE. Events of an
+ * unknown type are skipped and counted as dropped, they can never be queued.
+ * Returns the number of leading events consumed, queued or skipped, which is less
+ * than count only if the queue ran full; the caller sends the rest again later. */
+static jint JNICALL jni_freerdp_send_input_batch(
+    JNIEnv* env, jclass cls, jint instance, jintArray jevents, jint count)
+{
+	ANDROID_EVENT events[64];
+	jint indices[ARRAYSIZE(events)];
+	freerdp* inst = (freerdp*)instance;
+	jint* packed;
+	jint consumed = 0;
+	jint queued = 0;
+	jint i;
+
+	if (!inst || !inst->context || !jevents || (count <= 0))
+		return 0;
+
+	if ((*env)->GetArrayLength(env, jevents) < count * INPUT_BATCH_STRIDE)
+		return 0;
+
+	if (!(packed = (*env)->GetIntArrayElements(env, jevents, NULL)))
+		return 0;
+
+	while (consumed < count)
+	{
+		int pushed;
+		int chunk = 0;
+
+		for (i = consumed; (i < count) && (chunk < ARRAYSIZE(events)); i++)
+		{
+			const jint* p = &packed[i * INPUT_BATCH_STRIDE];
+			ANDROID_EVENT* event = &events[chunk];
+
+			switch (p[0])
+			{
+				case EVENT_TYPE_KEY:
+					android_virtual_key_init(event, p[1], p[2] != 0);
+					break;
+
+				case EVENT_TYPE_KEY_UNICODE:
+					android_event_unicodekey_init(event, p[1]);
+					break;
+
+				case EVENT_TYPE_CURSOR:
+					android_event_cursor_init(event, p[3], p[1], p[2]);
+					break;
+
+				default:
+					WLog_ERR(TAG, "send_input_batch: skipping invalid event type %d", p[0]);
+					continue;
+			}
+
+			indices[chunk++] = i;
+		}
+
+		pushed = android_push_events(inst, events, chunk);
+		queued += pushed;
+
+		if (pushed < chunk)
+		{
+			/* the first event that did not fit, invalid ones before it are done */
+			consumed = indices[pushed];
+			break;
+		}
+
+		consumed = i;
+	}
+
+	(*env)->ReleaseIntArrayElements(env, jevents, packed, JNI_ABORT);
+
+	/* everything consumed but not queued was skipped, the rest is scanned again */
+	if (consumed > queued)
+		android_stats_add((androidContext*)inst->context, ANDROID_STAT_INPUT_DROPPED,
+		                  consumed - queued);
+
+	WLog_DBG(TAG, "send_input_batch: %d of %d, %d skipped", consumed, count, consumed - queued);
+	return consumed;
+}
+
 static jboolean JNICALL jni_freerdp_send_clipboard_data(
     JNIEnv* env, jclass cls,
     jint instance, jstring jdata)
 {
-	ANDROID_EVENT* event;
+	ANDROID_EVENT event;
 	freerdp* inst = (freerdp*)instance;
 	const jbyte* data = jdata != NULL ? (*env)->GetStringUTFChars(env, jdata,
 	                    NULL) : NULL;
 	int data_length = data ? strlen(data) : 0;
 	jboolean ret = JNI_FALSE;;
-	event = (ANDROID_EVENT*) android_event_clipboard_new((void*)data, data_length);
-
-	if (!event)
+	if (!android_event_clipboard_init(&event, (void*)data, data_length))
 		goto out_fail;
 
-	if (!android_push_event(inst, event))
+	if (!android_push_event(inst, &event))
 	{
-		android_event_free(event);
+		android_event_free(&event);
 		goto out_fail;
 	}
 
@@ -1146,6 +1823,36 @@ static JNINativeMethod methods[] =
 		"(I[Ljava/lang/String;)Z",
 		&jni_freerdp_parse_arguments
 	},
+	{
+		"freerdp_set_int_setting",
+		"(III)Z",
+		&jni_freerdp_set_int_setting
+	},
+	{
+		"freerdp_set_bool_setting",
+		"(IIZ)Z",
+		&jni_freerdp_set_bool_setting
+	},
+	{
+		"freerdp_set_string_setting",
+		"(IILjava/lang/String;)Z",
+		&jni_freerdp_set_string_setting
+	},
+	{
+		"freerdp_apply_settings",
+		"(I[I[J)Z",
+		&jni_freerdp_apply_settings
+	},
+	{
+		"freerdp_get_settings",
+		"(I[I[J)Z",
+		&jni_freerdp_get_settings
+	},
+	{
+		"freerdp_set_monitor_layout",
+		"(I[II)Z",
+		&jni_freerdp_set_monitor_layout
+	},
 	{
 		"freerdp_connect",
 		"(I)Z",
@@ -1157,13 +1864,28 @@ static JNINativeMethod methods[] =
 		&jni_freerdp_disconnect
 	},
 	{
-		"freerdp_update_graphics",
-		"(ILandroid/graphics/Bitmap;IIII)Z",
-		&jni_freerdp_update_graphics
+		"freerdp_get_framebuffer",
+		"(I[I)Ljava/nio/ByteBuffer;",
+		&jni_freerdp_get_framebuffer
+	},
+	{
+		"freerdp_set_frame_interval",
+		"(II)Z",
+		&jni_freerdp_set_frame_interval
+	},
+	{
+		"freerdp_get_stats",
+		"(I[J)Z",
+		&jni_freerdp_get_stats
+	},
+	{
+		"freerdp_take_latency_probe",
+		"(I[J)Z",
+		&jni_freerdp_take_latency_probe
 	},
 	{
 		"freerdp_send_cursor_event",
-		"(IIII)Z",
+		"(IIIIJ)Z",
 		&jni_freerdp_send_cursor_event
 	},
 	{
@@ -1176,6 +1898,11 @@ static JNINativeMethod methods[] =
 		"(II)Z",
 		&jni_freerdp_send_unicodekey_event
 	},
+	{
+		"freerdp_send_input_batch",
+		"(I[II)I",
+		&jni_freerdp_send_input_batch
+	},
 	{
 		"freerdp_send_clipboard_data",
 		"(ILjava/lang/String;)Z",
@@ -17,9 +17,44 @@
 
 #include <freerdp/freerdp.h>
 #include <freerdp/client/cliprdr.h>
+#include <freerdp/codec/region.h>
 
 #include "android_event.h"
 
+/* Keep in sync with LibFreeRDP.STAT_*, Java fills the slots after these */
+#define ANDROID_STAT_UPDATES		0	/* end_paint calls with damage */
+#define ANDROID_STAT_UPDATE_RECTS	1	/* rectangles invalidated by those */
+#define ANDROID_STAT_COALESCED		2	/* updates merged into a later flush */
+#define ANDROID_STAT_FLUSHES		3	/* damage hand overs to Java */
+#define ANDROID_STAT_QUEUE_DEPTH	4	/* input events waiting, sampled on read */
+#define ANDROID_STAT_INPUT_EVENTS	5	/* input events processed */
+#define ANDROID_STAT_INPUT_DROPPED	6	/* input events rejected, full queue or invalid */
+#define ANDROID_STAT_BYTES_RECEIVED	7	/* transport bytes, sampled on read */
+#define ANDROID_STAT_COUNT		8
+
+/* Input to photon probe states, see android_probe_dispatch. WRITING guards
+ * the fields while one thread moves the probe on. */
+#define ANDROID_PROBE_IDLE		0
+#define ANDROID_PROBE_DISPATCHED	1	/* sent to the server, waiting for damage */
+#define ANDROID_PROBE_PAINTED		2	/* damage covered it, waiting for the flush */
+#define ANDROID_PROBE_WRITING		3
+
+/* Keep in sync with LibFreeRDP.PROBE_*, timestamps in CLOCK_MONOTONIC ns like
+ * System.nanoTime */
+#define ANDROID_PROBE_INPUT		0	/* tagged in LibFreeRDP.sendCursorEvent */
+#define ANDROID_PROBE_DISPATCHED_AT	1	/* handed to FreeRDP */
+#define ANDROID_PROBE_PAINTED_AT	2	/* end_paint damage covered the pointer */
+#define ANDROID_PROBE_COUNT		3
+
+struct android_latency_probe
+{
+	UINT32 state;
+	UINT16 x;
+	UINT16 y;
+	UINT64 times[ANDROID_PROBE_COUNT];
+};
+typedef struct android_latency_probe ANDROID_LATENCY_PROBE;
+
 struct android_context
 {
 	rdpContext rdpCtx;
@@ -29,6 +64,26 @@ struct android_context
 
 	BOOL is_connected;
 
+	/* end_paint damage not handed to Java yet, see android_end_paint. With
+	 * AsyncUpdate end_paint runs on the update thread while the session thread
+	 * does the trailing flush, damageLock guards these fields and serializes
+	 * the flushes. It is also held from begin_paint to end_paint (painting), so
+	 * a flush never copies a framebuffer that is half painted. damageEvent
+	 * wakes the session thread for a new burst. */
+	CRITICAL_SECTION damageLock;
+	BOOL painting;
+	HANDLE damageEvent;
+	REGION16 pendingDamage;
+	UINT32 pendingUpdates;
+	UINT64 lastFlush;
+	UINT32 frameInterval;
+
+	/* Pipeline counters indexed by ANDROID_STAT_*, see android_stats_add */
+	UINT64 stats[ANDROID_STAT_COUNT];
+
+	/* One traced pointer event at a time, see android_probe_dispatch */
+	ANDROID_LATENCY_PROBE probe;
+
 	BOOL clipboardSync;
 	wClipboard* clipboard;
 	UINT32 numServerFormats;
@@ -40,6 +95,24 @@ struct android_context
 };
 typedef struct android_context androidContext;
 
+/* Damage is handed to Java at most once per frame interval (ms), ~60 Hz
+ * until the display rate is known */
+#define ANDROID_DEFAULT_FRAME_INTERVAL	16
+
+/* Events packed by LibFreeRDP.InputBatch, each one is
+ * { EVENT_TYPE_*, arg0, arg1, arg2 }:
+ *   EVENT_TYPE_KEY          keycode, down
+ *   EVENT_TYPE_KEY_UNICODE  keycode
+ *   EVENT_TYPE_CURSOR       x, y, flags */
+#define INPUT_BATCH_STRIDE	4
+
+/* Counters are written from several threads and only ever read as a snapshot,
+ * relaxed increments are all the ordering they need */
+#define android_stats_add(ctx, stat, n) \
+	__atomic_fetch_add(&(ctx)->stats[stat], (UINT64)(n), __ATOMIC_RELAXED)
+
+void android_probe_dispatch(androidContext* ctx, UINT16 x, UINT16 y, UINT64 input);
+
 #endif /* __ANDROID_FREERDP_H */
 
 
@@ -13,6 +13,7 @@
 #endif
 
 #include <stdio.h>
+#include <pthread.h>
 
 #include "android_jni_callback.h"
 #include "android_freerdp_jni.h"
@@ -21,10 +22,56 @@
 #define TAG CLIENT_TAG("android.callback")
 
 static JavaVM* jVM;
+/* set on threads jni_attach_thread attached, its destructor detaches them */
+static pthread_key_t jAttachedKey;
+static pthread_once_t jAttachedKeyOnce = PTHREAD_ONCE_INIT;
 static jobject jLibFreeRDPObject;
+static jclass jLibFreeRDPClass;
 
 static const char *jLibFreeRDPPath = JAVA_LIBFREERDP_CLASS;
 
+struct callback_method
+{
+	const char* name;
+	const char* signature;
+	jmethodID id;
+};
+
+/* Indexed by ANDROID_CALLBACK */
+static struct callback_method jCallbacks[CALLBACK_COUNT] =
+{
+	{ "OnPreConnect", "(I)V", NULL },
+	{ "OnConnectionSuccess", "(I)V", NULL },
+	{ "OnConnectionFailure", "(I)V", NULL },
+	{ "OnDisconnecting", "(I)V", NULL },
+	{ "OnDisconnected", "(I)V", NULL },
+	{ "OnSettingsChanged", "(IIII)V", NULL },
+	{
+		"OnAuthenticate",
+		"(ILjava/lang/StringBuilder;Ljava/lang/StringBuilder;Ljava/lang/StringBuilder;)Z",
+		NULL
+	},
+	{
+		"OnGatewayAuthenticate",
+		"(ILjava/lang/StringBuilder;Ljava/lang/StringBuilder;Ljava/lang/StringBuilder;)Z",
+		NULL
+	},
+	{
+		"OnVerifyCertificate",
+		"(ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)I",
+		NULL
+	},
+	{
+		"OnVerifyChangedCertificate",
+		"(ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;"
+		"Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I",
+		NULL
+	},
+	{ "OnGraphicsUpdateRegions", "(I[I)V", NULL },
+	{ "OnGraphicsResize", "(IIII)V", NULL },
+	{ "OnRemoteClipboardChanged", "(ILjava/lang/String;)V", NULL }
+};
+
 void jni_load_class(JNIEnv *env, const char *path, jobject *objptr)
 {
 	jclass class;
@@ -63,177 +110,195 @@ finish:
 	while(0);
 }
 
-jint init_callback_environment(JavaVM* vm, JNIEnv* env)
+/* Resolves the callback table, method IDs stay valid as long as the class
+ * is loaded, which the global reference guarantees */
+static jboolean jni_load_callbacks(JNIEnv *env, jobject obj)
 {
-	jVM = vm;
+	int i;
+	jclass class;
 
-	jni_load_class(env, jLibFreeRDPPath, &jLibFreeRDPObject);
+	if (!obj)
+		return JNI_FALSE;
 
-	return JNI_VERSION_1_6;
-}
+	class = (*env)->GetObjectClass(env, obj);
 
-/* attach current thread to jvm */
-jboolean jni_attach_thread(JNIEnv** env)
-{
-	if ((*jVM)->GetEnv(jVM, (void**) env, JNI_VERSION_1_4) != JNI_OK)
+	if (!class)
 	{
-		WLog_DBG(TAG, "android_java_callback: attaching current thread");
+		WLog_ERR(TAG, "jni_load_callbacks: failed to get class reference");
+		return JNI_FALSE;
+	}
+
+	jLibFreeRDPClass = (*env)->NewGlobalRef(env, class);
+	(*env)->DeleteLocalRef(env, class);
 
-		(*jVM)->AttachCurrentThread(jVM, env, NULL);
+	for (i = 0; i < CALLBACK_COUNT; i++)
+	{
+		jCallbacks[i].id = (*env)->GetStaticMethodID(env, jLibFreeRDPClass,
+		                   jCallbacks[i].name, jCallbacks[i].signature);
 
-		if ((*jVM)->GetEnv(jVM, (void**) env, JNI_VERSION_1_4) != JNI_OK)
+		if (!jCallbacks[i].id)
 		{
-			WLog_ERR(TAG, "android_java_callback: failed to obtain current JNI environment");
+			WLog_ERR(TAG, "jni_load_callbacks: failed to get method id of %s %s",
+			         jCallbacks[i].name, jCallbacks[i].signature);
+			(*env)->ExceptionClear(env);
 		}
-
-		return JNI_TRUE;
 	}
 
-	return JNI_FALSE;
+	return JNI_TRUE;
 }
 
-/* attach current thread to JVM */
-void jni_detach_thread()
+jint init_callback_environment(JavaVM* vm, JNIEnv* env)
 {
-	(*jVM)->DetachCurrentThread(jVM);
+	jVM = vm;
+
+	jni_load_class(env, jLibFreeRDPPath, &jLibFreeRDPObject);
+	jni_load_callbacks(env, jLibFreeRDPObject);
+
+	return JNI_VERSION_1_6;
 }
 
-/* callback with void result */
-void java_callback_void(jobject obj, const char * callback, const char* signature, va_list args)
+static void jni_thread_exit(void* value)
 {
-	jclass jObjClass;
-	jmethodID jCallback;
-	jboolean attached;
-	JNIEnv *env;
+	WLog_DBG(TAG, "android_java_callback: detaching exiting thread");
+	(*jVM)->DetachCurrentThread(jVM);
+}
 
-	WLog_DBG(TAG, "java_callback: %s (%s)", callback, signature);
+static void jni_create_attached_key(void)
+{
+	if (pthread_key_create(&jAttachedKey, jni_thread_exit) != 0)
+		WLog_ERR(TAG, "android_java_callback: failed to create thread key");
+}
 
-	attached = jni_attach_thread(&env);
+/* attach current thread to jvm. A native thread stays attached until it exits,
+ * so a thread calling back frequently (session, input and FreeRDP's update
+ * thread) attaches once and afterwards this is just a GetEnv.
+ * Returns JNI_FALSE if no environment could be obtained. */
+jboolean jni_attach_thread(JNIEnv** env)
+{
+	if ((*jVM)->GetEnv(jVM, (void**) env, JNI_VERSION_1_4) == JNI_OK)
+		return JNI_TRUE;
 
-	jObjClass = (*env)->GetObjectClass(env, obj);
+	WLog_DBG(TAG, "android_java_callback: attaching current thread");
+	pthread_once(&jAttachedKeyOnce, jni_create_attached_key);
 
-	if (!jObjClass)
+	if ((*jVM)->AttachCurrentThread(jVM, env, NULL) != JNI_OK)
 	{
-		WLog_ERR(TAG, "android_java_callback: failed to get class reference");
-		goto finish;
+		WLog_ERR(TAG, "android_java_callback: failed to obtain current JNI environment");
+		return JNI_FALSE;
 	}
 
-	jCallback = (*env)->GetStaticMethodID(env, jObjClass, callback, signature);
+	/* any non NULL value makes the destructor run at thread exit */
+	pthread_setspecific(jAttachedKey, jVM);
+	return JNI_TRUE;
+}
 
-	if (!jCallback)
-	{
-		WLog_ERR(TAG, "android_java_callback: failed to get method id");
-		goto finish;
-	}
+static jmethodID java_callback_method(ANDROID_CALLBACK callback)
+{
+	if ((callback < 0) || (callback >= CALLBACK_COUNT) || !jLibFreeRDPClass)
+		return NULL;
 
-	(*env)->CallStaticVoidMethodV(env, jObjClass, jCallback, args);
+	WLog_DBG(TAG, "java_callback: %s (%s)", jCallbacks[callback].name,
+	         jCallbacks[callback].signature);
 
-finish:
-	if(attached == JNI_TRUE)
-		jni_detach_thread();
+	if (!jCallbacks[callback].id)
+		WLog_ERR(TAG, "android_java_callback: no method id for %s", jCallbacks[callback].name);
+
+	return jCallbacks[callback].id;
 }
 
-/* callback with bool result */
-jboolean java_callback_bool(jobject obj, const char * callback,
-			    const char* signature, va_list args)
+/* Threads stay attached across callbacks, so an exception thrown by a listener
+ * is not cleared by a detach anymore. It has to be cleared before the thread
+ * makes its next JNI call. */
+static jboolean java_callback_failed(JNIEnv* env, ANDROID_CALLBACK callback)
+{
+	if (!(*env)->ExceptionCheck(env))
+		return JNI_FALSE;
+
+	WLog_ERR(TAG, "android_java_callback: %s threw an exception", jCallbacks[callback].name);
+	(*env)->ExceptionDescribe(env);
+	(*env)->ExceptionClear(env);
+	return JNI_TRUE;
+}
+
+/* callback with void result */
+void java_callback_void(ANDROID_CALLBACK callback, va_list args)
 {
-	jclass jObjClass;
 	jmethodID jCallback;
-	jboolean attached;
-	jboolean res = JNI_FALSE;
 	JNIEnv *env;
 
-	WLog_DBG(TAG, "java_callback: %s (%s)", callback, signature);
+	if (!(jCallback = java_callback_method(callback)))
+		return;
 
-	attached = jni_attach_thread(&env);
+	jni_attach_thread(&env);
 
-	jObjClass = (*env)->GetObjectClass(env, obj);
+	(*env)->CallStaticVoidMethodV(env, jLibFreeRDPClass, jCallback, args);
+	java_callback_failed(env, callback);
+}
 
-	if (!jObjClass)
-	{
-		WLog_ERR(TAG, "android_java_callback: failed to get class reference");
-		goto finish;
-	}
+/* callback with bool result */
+jboolean java_callback_bool(ANDROID_CALLBACK callback, va_list args)
+{
+	jmethodID jCallback;
+	jboolean res;
+	JNIEnv *env;
 
-	jCallback = (*env)->GetStaticMethodID(env, jObjClass, callback, signature);
+	if (!(jCallback = java_callback_method(callback)))
+		return JNI_FALSE;
 
-	if (!jCallback)
-	{
-		WLog_ERR(TAG, "android_java_callback: failed to get method id");
-		goto finish;
-	}
+	jni_attach_thread(&env);
 
-	res = (*env)->CallStaticBooleanMethodV(env, jObjClass, jCallback, args);
+	res = (*env)->CallStaticBooleanMethodV(env, jLibFreeRDPClass, jCallback, args);
 
-finish:
-	if(attached == JNI_TRUE)
-		jni_detach_thread();
+	if (java_callback_failed(env, callback))
+		res = JNI_FALSE;
 
 	return res;
 }
 
 /* callback with int result */
-jint java_callback_int(jobject obj, const char * callback, const char* signature, va_list args)
+jint java_callback_int(ANDROID_CALLBACK callback, va_list args)
 {
-	jclass jObjClass;
 	jmethodID jCallback;
-	jboolean attached;
-	jint res = -1;
+	jint res;
 	JNIEnv *env;
 
-	WLog_DBG(TAG, "java_callback: %s (%s)", callback, signature);
+	if (!(jCallback = java_callback_method(callback)))
+		return -1;
 
-	attached = jni_attach_thread(&env);
+	jni_attach_thread(&env);
 
-	jObjClass = (*env)->GetObjectClass(env, obj);
+	res = (*env)->CallStaticIntMethodV(env, jLibFreeRDPClass, jCallback, args);
 
-	if (!jObjClass)
-	{
-		WLog_ERR(TAG, "android_java_callback: failed to get class reference");
-		goto finish;
-	}
-
-	jCallback = (*env)->GetStaticMethodID(env, jObjClass, callback, signature);
-
-	if (!jCallback)
-	{
-		WLog_ERR(TAG, "android_java_callback: failed to get method id");
-		goto finish;
-	}
-
-	res = (*env)->CallStaticIntMethodV(env, jObjClass, jCallback, args);
-
-finish:
-	if(attached == JNI_TRUE)
-		jni_detach_thread();
+	if (java_callback_failed(env, callback))
+		res = -1;
 
 	return res;
 }
 
 
 /* callback to freerdp class */
-void freerdp_callback(const char * callback, const char * signature, ...)
+void freerdp_callback(ANDROID_CALLBACK callback, ...)
 {
 	va_list vl;
-	va_start(vl, signature);
-	java_callback_void(jLibFreeRDPObject, callback, signature, vl);
+	va_start(vl, callback);
+	java_callback_void(callback, vl);
 	va_end(vl);
 }
 
-jboolean freerdp_callback_bool_result(const char * callback, const char * signature, ...)
+jboolean freerdp_callback_bool_result(ANDROID_CALLBACK callback, ...)
 {
 	va_list vl;
-	va_start(vl, signature);
-	jboolean res = java_callback_bool(jLibFreeRDPObject, callback, signature, vl);
+	va_start(vl, callback);
+	jboolean res = java_callback_bool(callback, vl);
 	va_end(vl);
 	return res;
 }
 
-jint freerdp_callback_int_result(const char * callback, const char * signature, ...)
+jint freerdp_callback_int_result(ANDROID_CALLBACK callback, ...)
 {
 	va_list vl;
- 	va_start(vl, signature);
-	jint res = java_callback_int(jLibFreeRDPObject, callback, signature, vl);
+ 	va_start(vl, callback);
+	jint res = java_callback_int(callback, vl);
 	va_end(vl);
 	return res;
 }
@@ -16,12 +16,31 @@
 #include <jni.h>
 #include <stdarg.h>
 
+/* Static LibFreeRDP methods called from native code, their method IDs are
+ * resolved once in init_callback_environment (see jCallbacks) */
+typedef enum
+{
+	CALLBACK_ON_PRE_CONNECT,
+	CALLBACK_ON_CONNECTION_SUCCESS,
+	CALLBACK_ON_CONNECTION_FAILURE,
+	CALLBACK_ON_DISCONNECTING,
+	CALLBACK_ON_DISCONNECTED,
+	CALLBACK_ON_SETTINGS_CHANGED,
+	CALLBACK_ON_AUTHENTICATE,
+	CALLBACK_ON_GATEWAY_AUTHENTICATE,
+	CALLBACK_ON_VERIFY_CERTIFICATE,
+	CALLBACK_ON_VERIFY_CHANGED_CERTIFICATE,
+	CALLBACK_ON_GRAPHICS_UPDATE_REGIONS,
+	CALLBACK_ON_GRAPHICS_RESIZE,
+	CALLBACK_ON_REMOTE_CLIPBOARD_CHANGED,
+	CALLBACK_COUNT
+} ANDROID_CALLBACK;
+
 jint init_callback_environment(JavaVM* vm, JNIEnv* env);
 jboolean jni_attach_thread(JNIEnv** env);
-void jni_detach_thread(void);
-void freerdp_callback(const char * callback, const char * signature, ...);
-jboolean freerdp_callback_bool_result(const char * callback, const char * signature, ...);
-jint freerdp_callback_int_result(const char * callback, const char * signature, ...);
+void freerdp_callback(ANDROID_CALLBACK callback, ...);
+jboolean freerdp_callback_bool_result(ANDROID_CALLBACK callback, ...);
+jint freerdp_callback_int_result(ANDROID_CALLBACK callback, ...);
 
 #endif /* FREERDP_ANDROID_JNI_CALLBACK_H */
 